@@ -9,4 +9,4 @@ if [ ! -e target/harmony-1.0-SNAPSHOT-jar-with-dependencies.jar ]; then
   mvn package -DskipTests
 fi
 
-java -jar target/harmony-1.0-SNAPSHOT-jar-with-dependencies.jar "$@"
\ No newline at end of file
+java $JAVA_OPTS -jar target/harmony-1.0-SNAPSHOT-jar-with-dependencies.jar "$@"
\ No newline at end of file
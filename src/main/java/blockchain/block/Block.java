@@ -2,12 +2,15 @@ package blockchain.block;
 
 import blockchain.pow.PowResult;
 import blockchain.pow.ProofOfWork;
+import blockchain.transaction.MerkleProof;
 import blockchain.transaction.MerkleTree;
 import blockchain.transaction.Transaction;
 import blockchain.utils.ByteUtil;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.util.Arrays;
+
 
 /**
  * 区块结构
@@ -23,6 +26,22 @@ public class Block {
     private String prevBlockHash; //上一个区块的hash
     private String hash; //当前区块hash
     private long nonce; //挖矿的nonce值
+    /**
+     * 区块高度，创世区块为 0
+     * <p>
+     * 不参与 Kryo 序列化，保证旧版本的区块数据依然可以读取，由 RocksDBUtil 单独存储
+     */
+    private transient long height;
+    /**
+     * 难度目标位
+     * <p>
+     * 同样不参与 Kryo 序列化，旧版本的区块使用固定的 ProofOfWork.TARGET_BITS
+     */
+    private transient int targetBits = ProofOfWork.TARGET_BITS;
+    /**
+     * 是否为没有记录难度的旧版本区块，这些区块挖出时还没有难度调整规则，难度固定为 ProofOfWork.TARGET_BITS
+     */
+    private transient boolean legacyDifficulty;
 
     public Block(long timestamp, Transaction[] transactions, String prevBlockHash, String hash) {
         this.timestamp = timestamp;
@@ -31,8 +50,10 @@ public class Block {
         this.hash = hash;
     }
 
-    public static Block newBlock(Transaction[] transactions, String prevBlockHash) {
+    public static Block newBlock(Transaction[] transactions, String prevBlockHash, long height, int targetBits) {
         Block block = new Block(System.currentTimeMillis(), transactions, prevBlockHash, null);
+        block.setHeight(height);
+        block.setTargetBits(targetBits);
         ProofOfWork pow = ProofOfWork.newProofOfWork(block);
         PowResult powResult = pow.run();
         block.setHash(powResult.getShaHex());
@@ -41,7 +62,7 @@ public class Block {
     }
 
     public static Block newGenesisBlock(Transaction coinbase){
-        return Block.newBlock(new Transaction[]{coinbase}, ByteUtil.ZERO_HASH);
+        return Block.newBlock(new Transaction[]{coinbase}, ByteUtil.ZERO_HASH, 0, ProofOfWork.TARGET_BITS);
     }
 
     /**
@@ -50,10 +71,44 @@ public class Block {
      * @return
      */
     public byte[] hashTransaction() {
+        return this.merkleTree().getRootHash();
+    }
+
+    /**
+     * 生成区块中指定交易的默克尔包含证明
+     *
+     * @param txId 交易ID
+     * @return 交易不在区块中时返回 null
+     */
+    public MerkleProof getMerkleProof(byte[] txId) {
+        for (int i = 0; i < this.getTransactions().length; i++) {
+            if (Arrays.equals(this.getTransactions()[i].getTxId(), txId)) {
+                return this.getMerkleProof(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 生成区块中指定位置交易的默克尔包含证明
+     *
+     * @param position 交易在区块中的下标
+     * @return
+     */
+    public MerkleProof getMerkleProof(int position) {
+        return this.merkleTree().getProof(position);
+    }
+
+    /**
+     * 以交易Hash为叶子节点构建默克尔树
+     *
+     * @return
+     */
+    private MerkleTree merkleTree() {
         byte[][] txIdArrays = new byte[this.getTransactions().length][];
         for (int i = 0; i < this.getTransactions().length; i++) {
             txIdArrays[i] = this.getTransactions()[i].hash();
         }
-        return new MerkleTree(txIdArrays).getRoot().getHash();
+        return new MerkleTree(txIdArrays);
     }
 }
@@ -1,28 +1,72 @@
 package blockchain.block;
 
+import blockchain.pow.ProofOfWork;
+import blockchain.transaction.MerkleProof;
+import blockchain.transaction.SignatureCheck;
+import blockchain.transaction.SignatureVerifier;
 import blockchain.transaction.SpendableOutputResult;
 import blockchain.transaction.TXInput;
-import blockchain.transaction.TXOutput;
 import blockchain.transaction.Transaction;
+import blockchain.transaction.UTXOSet;
+import blockchain.utils.ByteUtil;
+import blockchain.utils.LogUtil;
 import blockchain.utils.RocksDBUtil;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Lists;
 import lombok.Getter;
 import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.bouncycastle.jcajce.provider.asymmetric.ec.BCECPrivateKey;
+import org.rocksdb.WriteBatch;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 
 public class BlockChain {
+    /**
+     * 是否启用交易索引，可通过 -Dharmony.txindex=false 关闭
+     */
+    private static final boolean TX_INDEX_ENABLED = Boolean.parseBoolean(System.getProperty("harmony.txindex", "true"));
+    /**
+     * 重建索引时每批写入的区块数，每批同时记录索引已同步到的区块，中断后从该区块继续
+     */
+    private static final int REINDEX_BATCH_BLOCKS = Math.max(1, Integer.parseInt(System.getProperty("harmony.reindex.batch.blocks",
+            "1000")));
+
+    /**
+     * 最新区块，连接新区块时整体替换
+     */
     @Getter
-    private String lastBlockHash;
+    private volatile ChainTip tip;
+    /**
+     * 新区块监听
+     */
+    private final List<Consumer<Block>> blockListeners = new CopyOnWriteArrayList<>();
+
+    private BlockChain(String lastBlockHash, long bestHeight) {
+        this.tip = new ChainTip(lastBlockHash, bestHeight);
+    }
 
-    private BlockChain(String lastBlockHash) {
-        this.lastBlockHash = lastBlockHash;
+    /**
+     * 最新区块的Hash
+     *
+     * @return
+     */
+    public String getLastBlockHash() {
+        return this.tip.getHash();
+    }
+
+    /**
+     * 最新区块的高度，空链为 -1
+     *
+     * @return
+     */
+    public long getBestHeight() {
+        return this.tip.getHeight();
     }
 
     /**
@@ -30,31 +74,259 @@ public class BlockChain {
      *
      * @param transactions
      */
-    public Block mineBlock(Transaction[] transactions) throws Exception {
+    public synchronized Block mineBlock(Transaction[] transactions) throws Exception {
         // 挖矿前，先验证交易记录
-        for (Transaction tx : transactions) {
-            if (!this.verifyTransactions(tx)) {
-                throw new Exception("ERROR: Fail to mine block ! Invalid transaction ! ");
-            }
+        if (!this.verifyTransactions(transactions)) {
+            throw new Exception("ERROR: Fail to mine block ! Invalid transaction ! ");
         }
         String lastBlockHash = RocksDBUtil.getInstance().getLastBlockHash();
         if (lastBlockHash == null) {
             throw new Exception("ERROR: Fail to get last block hash ! ");
         }
-        Block block = Block.newBlock(transactions, lastBlockHash);
-        this.addBlock(block);
+        long height = this.getBestHeight() + 1;
+        Block block = Block.newBlock(transactions, lastBlockHash, height, this.getNextTargetBits(height));
+        this.connectBlock(block);
         return block;
     }
 
     /**
-     * 添加区块
+     * 连接区块
+     * <p>
+     * 区块数据、最新区块Hash以及各个索引放在同一个 WriteBatch 中原子提交，
+     * 避免中途崩溃导致区块链状态不一致。UTXO的变化写入 UTXOCache，
+     * 由缓存记录已同步到的区块，崩溃后在加载区块链时重放
+     *
+     * @param block
+     */
+    public synchronized void connectBlock(Block block) {
+        long startTime = System.nanoTime();
+        long syncCount = RocksDBUtil.getInstance().getSyncCount();
+        try (WriteBatch batch = new WriteBatch()) {
+            RocksDBUtil.getInstance().putBlock(batch, block);
+            RocksDBUtil.getInstance().putLastBlockHash(batch, block.getHash());
+            RocksDBUtil.getInstance().putBlockHash(batch, block.getHeight(), block.getHash());
+            if (block.getHeight() == 0) {
+                // 新建的区块链，地址索引随UTXO池一起从创世区块开始建立，UTXO还没有应用任何区块
+                RocksDBUtil.getInstance().putAddressIndexBuilt(batch);
+                RocksDBUtil.getInstance().putUTXOTip(batch, ByteUtil.ZERO_HASH);
+            }
+            if (TX_INDEX_ENABLED) {
+                this.putTxLocations(batch, block);
+                RocksDBUtil.getInstance().putTxIndexTip(batch, block.getHash());
+            }
+            RocksDBUtil.getInstance().writeBatch(batch);
+        }
+        this.tip = new ChainTip(block.getHash(), block.getHeight());
+        new UTXOSet(this).update(block);
+        LogUtil.d("Connect block elapsed time(ms):" + (System.nanoTime() - startTime) / 1000000f
+                + " fsyncs:" + (RocksDBUtil.getInstance().getSyncCount() - syncCount));
+        for (Consumer<Block> listener : this.blockListeners) {
+            listener.accept(block);
+        }
+    }
+
+    /**
+     * 提交外部挖出的区块，区块不是基于最新区块或工作量证明无效时放弃
+     *
+     * @param block
+     * @return 是否已连接到区块链
+     */
+    public synchronized boolean submitBlock(Block block) {
+        ChainTip tip = this.tip;
+        if (!StringUtils.equals(block.getPrevBlockHash(), tip.getHash()) || block.getHeight() != tip.getHeight() + 1) {
+            LogUtil.d("Drop stale block ! hash=" + block.getHash());
+            return false;
+        }
+        if (!this.verifyBlockHeader(block)) {
+            LogUtil.d("Drop invalid block ! hash=" + block.getHash());
+            return false;
+        }
+        this.connectBlock(block);
+        return true;
+    }
+
+    /**
+     * 计算指定高度区块的难度目标位
+     * <p>
+     * 每 RETARGET_INTERVAL 个区块，根据上一个调整周期的出块耗时调整一次难度，其余区块沿用上一个区块的难度
+     *
+     * @param height
+     * @return
+     */
+    public int getNextTargetBits(long height) {
+        return this.getNextTargetBits(height, height <= 0 ? null : this.getBlockByHeight(height - 1));
+    }
+
+    /**
+     * 计算指定高度区块的难度目标位
+     *
+     * @param height
+     * @param prevBlock 上一个区块，创世区块为 null
+     * @return
+     */
+    private int getNextTargetBits(long height, Block prevBlock) {
+        if (height <= 0) {
+            return ProofOfWork.TARGET_BITS;
+        }
+        if (height % ProofOfWork.RETARGET_INTERVAL != 0) {
+            return prevBlock.getTargetBits();
+        }
+        Block firstBlock = this.getBlockByHeight(height - ProofOfWork.RETARGET_INTERVAL);
+        long actualMillis = prevBlock.getTimestamp() - firstBlock.getTimestamp();
+        long expectedMillis = (ProofOfWork.RETARGET_INTERVAL - 1) * ProofOfWork.TARGET_BLOCK_MILLIS;
+        return ProofOfWork.retarget(prevBlock.getTargetBits(), actualMillis, expectedMillis);
+    }
+
+    /**
+     * 验证区块头：难度目标位符合难度调整规则，且工作量证明有效
      *
      * @param block
+     * @return
      */
-    public void addBlock(Block block) {
-        RocksDBUtil.getInstance().putLastBlockHash(block.getHash());
-        RocksDBUtil.getInstance().putBlock(block);
-        this.lastBlockHash = block.getHash();
+    public boolean verifyBlockHeader(Block block) {
+        if (block.getTargetBits() != this.getNextTargetBits(block.getHeight())) {
+            return false;
+        }
+        return ProofOfWork.newProofOfWork(block).validate();
+    }
+
+    /**
+     * 添加新区块监听，区块连接到区块链后在当前线程回调
+     *
+     * @param listener
+     */
+    public void addBlockListener(Consumer<Block> listener) {
+        this.blockListeners.add(listener);
+    }
+
+    public void removeBlockListener(Consumer<Block> listener) {
+        this.blockListeners.remove(listener);
+    }
+
+    /**
+     * 将区块中所有交易的位置写入交易索引
+     *
+     * @param batch
+     * @param block
+     */
+    private void putTxLocations(WriteBatch batch, Block block) {
+        Transaction[] transactions = block.getTransactions();
+        for (int i = 0; i < transactions.length; i++) {
+            RocksDBUtil.getInstance().putTxLocation(batch,
+                    Hex.encodeHexString(transactions[i].getTxId()), new TxLocation(block.getHash(), i));
+        }
+    }
+
+    /**
+     * 重建交易索引
+     * <p>
+     * 借助区块高度索引正序遍历，每 REINDEX_BATCH_BLOCKS 个区块提交一次，并记录交易索引已同步到的区块。
+     * 交易索引已同步到主链上的某个区块时，从它的下一个区块继续
+     */
+    public void reIndexTransactions() {
+        long startHeight = 0;
+        String txIndexTip = RocksDBUtil.getInstance().getTxIndexTip();
+        Block tipBlock = StringUtils.isBlank(txIndexTip) ? null : RocksDBUtil.getInstance().getBlock(txIndexTip);
+        if (tipBlock != null && txIndexTip.equals(RocksDBUtil.getInstance().getBlockHash(tipBlock.getHeight()))) {
+            startHeight = tipBlock.getHeight() + 1;
+        }
+        LogUtil.d("Start to reIndex transactions ! startHeight=" + startHeight);
+        BlockchainForwardIterator iterator = this.getBlockchainForwardIterator(startHeight);
+        while (iterator.hasNext()) {
+            try (WriteBatch batch = new WriteBatch()) {
+                Block block = null;
+                for (int i = 0; i < REINDEX_BATCH_BLOCKS && iterator.hasNext(); i++) {
+                    block = iterator.next();
+                    this.putTxLocations(batch, block);
+                }
+                RocksDBUtil.getInstance().putTxIndexTip(batch, block.getHash());
+                RocksDBUtil.getInstance().writeBatch(batch);
+            }
+        }
+        LogUtil.d("ReIndex transactions finished ! ");
+    }
+
+    /**
+     * 重建区块高度索引
+     * <p>
+     * 从最新区块倒序遍历，直到遇到已写入高度索引的区块，得到还没有索引的区块Hash，
+     * 再从低到高依次写入高度索引，同时把区块重新保存为带高度的记录。
+     * 每 REINDEX_BATCH_BLOCKS 个区块提交一次，已提交的最高的高度索引即为同步位置，中断后从它的下一个区块继续
+     */
+    public void reIndexHeights() {
+        List<String> blockHashes = Lists.newArrayList();
+        long startHeight = 0;
+        for (BlockchainIterator iterator = this.getBlockchainIterator(); iterator.hashNext(); ) {
+            Block block = iterator.next();
+            if (block.getHeight() >= 0 && block.getHash().equals(RocksDBUtil.getInstance().getBlockHash(block.getHeight()))) {
+                startHeight = block.getHeight() + 1;
+                break;
+            }
+            blockHashes.add(block.getHash());
+        }
+        LogUtil.d("Start to reIndex block heights ! startHeight=" + startHeight);
+        int index = blockHashes.size() - 1;
+        long height = startHeight;
+        while (index >= 0) {
+            try (WriteBatch batch = new WriteBatch()) {
+                for (int i = 0; i < REINDEX_BATCH_BLOCKS && index >= 0; i++, index--, height++) {
+                    String blockHash = blockHashes.get(index);
+                    Block block = RocksDBUtil.getInstance().getBlock(blockHash);
+                    block.setHeight(height);
+                    RocksDBUtil.getInstance().putBlock(batch, block);
+                    RocksDBUtil.getInstance().putBlockHash(batch, height, blockHash);
+                }
+                RocksDBUtil.getInstance().writeBatch(batch);
+            }
+        }
+        this.tip = new ChainTip(this.getLastBlockHash(), height - 1);
+        LogUtil.d("ReIndex block heights finished ! ");
+    }
+
+    /**
+     * 索引没有同步到最新区块时（例如旧版本的数据库），重建索引
+     */
+    private void syncIndexes() {
+        String lastBlockHash = this.getLastBlockHash();
+        if (StringUtils.isBlank(lastBlockHash)) {
+            return;
+        }
+        Block tipBlock = RocksDBUtil.getInstance().getBlock(lastBlockHash);
+        if (tipBlock.getHeight() >= 0 && lastBlockHash.equals(RocksDBUtil.getInstance().getBlockHash(tipBlock.getHeight()))) {
+            this.tip = new ChainTip(lastBlockHash, tipBlock.getHeight());
+        } else {
+            this.reIndexHeights();
+        }
+        if (TX_INDEX_ENABLED && !lastBlockHash.equals(RocksDBUtil.getInstance().getTxIndexTip())) {
+            this.reIndexTransactions();
+        }
+        new UTXOSet(this).migrateLegacyUTXOs();
+        if (!RocksDBUtil.getInstance().isAddressIndexBuilt()) {
+            new UTXOSet(this).reIndexAddresses();
+        }
+        new UTXOSet(this).replay();
+        this.verifyTargetBits();
+        // 难度目标位已逐个检查，最新区块再验证工作量证明；创世区块不做检查，旧版本的创世区块无法通过工作量证明验证
+        if (this.getBestHeight() > 0 && !ProofOfWork.newProofOfWork(RocksDBUtil.getInstance().getBlock(lastBlockHash)).validate()) {
+            throw new RuntimeException("Fail to load blockchain ! Invalid tip block: " + lastBlockHash);
+        }
+    }
+
+    /**
+     * 从创世区块开始正序遍历，检查每个区块的难度目标位都符合难度调整规则
+     * <p>
+     * 没有记录难度的旧版本区块挖出时还没有难度调整规则，不做检查
+     */
+    private void verifyTargetBits() {
+        Block prevBlock = null;
+        for (BlockchainForwardIterator iterator = this.getBlockchainForwardIterator(0); iterator.hasNext(); ) {
+            Block block = iterator.next();
+            if (!block.isLegacyDifficulty() && block.getTargetBits() != this.getNextTargetBits(block.getHeight(), prevBlock)) {
+                throw new RuntimeException("Fail to load blockchain ! Invalid target bits: " + block.getTargetBits()
+                        + " height=" + block.getHeight() + " hash=" + block.getHash());
+            }
+            prevBlock = block;
+        }
     }
 
     /**
@@ -68,7 +340,9 @@ public class BlockChain {
         if (lastBlockHash == null) {
             throw new Exception("ERROR: Fail to init blockchain from db. ");
         }
-        return new BlockChain(lastBlockHash);
+        BlockChain blockChain = new BlockChain(lastBlockHash, -1);
+        blockChain.syncIndexes();
+        return blockChain;
     }
 
     /**
@@ -82,83 +356,63 @@ public class BlockChain {
             // 创建 coinBase 交易
             Transaction coinbaseTX = Transaction.newCoinbaseTX(address, "");
             Block genesisBlock = Block.newGenesisBlock(coinbaseTX);
-            lastBlockHash = genesisBlock.getHash();
-            RocksDBUtil.getInstance().putBlock(genesisBlock);
-            RocksDBUtil.getInstance().putLastBlockHash(lastBlockHash);
+            BlockChain blockChain = new BlockChain(genesisBlock.getPrevBlockHash(), -1);
+            blockChain.connectBlock(genesisBlock);
+            return blockChain;
         }
-        return new BlockChain(lastBlockHash);
+        BlockChain blockChain = new BlockChain(lastBlockHash, -1);
+        blockChain.syncIndexes();
+        return blockChain;
     }
 
     public BlockchainIterator getBlockchainIterator() {
-        return new BlockchainIterator(lastBlockHash);
+        return new BlockchainIterator(this.getLastBlockHash());
     }
 
-
     /**
-     * 查找所有的 unspent transaction outputs
+     * 从指定高度开始正序遍历区块链
      *
+     * @param startHeight 起始高度
      * @return
      */
-    public Map<String, TXOutput[]> findAllUTXOs() {
-        Map<String, int[]> allSpentTXOs = this.getAllSpentTXOs();
-        Map<String, TXOutput[]> allUTXOs = Maps.newHashMap();
-        // 再次遍历所有区块中的交易输出
-        for (BlockchainIterator blockchainIterator = this.getBlockchainIterator(); blockchainIterator.hashNext(); ) {
-            Block block = blockchainIterator.next();
-            for (Transaction transaction : block.getTransactions()) {
-
-                String txId = Hex.encodeHexString(transaction.getTxId());
-
-                int[] spentOutIndexArray = allSpentTXOs.get(txId);
-                TXOutput[] txOutputs = transaction.getOutputs();
-                for (int outIndex = 0; outIndex < txOutputs.length; outIndex++) {
-                    if (spentOutIndexArray != null && ArrayUtils.contains(spentOutIndexArray, outIndex)) {
-                        continue;
-                    }
-                    TXOutput[] UTXOArray = allUTXOs.get(txId);
-                    if (UTXOArray == null) {
-                        UTXOArray = new TXOutput[]{txOutputs[outIndex]};
-                    } else {
-                        UTXOArray = ArrayUtils.add(UTXOArray, txOutputs[outIndex]);
-                    }
-                    allUTXOs.put(txId, UTXOArray);
-                }
-            }
+    public BlockchainForwardIterator getBlockchainForwardIterator(long startHeight) {
+        return new BlockchainForwardIterator(startHeight, this.getBestHeight());
+    }
+
+    /**
+     * 依据区块高度查询区块
+     *
+     * @param height 区块高度
+     * @return 区块不存在时返回 null
+     */
+    public Block getBlockByHeight(long height) {
+        if (height < 0 || height > this.getBestHeight()) {
+            return null;
         }
-        return allUTXOs;
+        String blockHash = RocksDBUtil.getInstance().getBlockHash(height);
+        if (blockHash == null) {
+            return null;
+        }
+        return RocksDBUtil.getInstance().getBlock(blockHash);
     }
 
     /**
-     * 从交易输入中查询区块链中所有已被花费了的交易输出
+     * 查询指定高度区间的区块，超出链高度的部分会被忽略
      *
-     * @return 交易ID以及对应的交易输出下标地址
+     * @param from 起始高度（包含）
+     * @param to   结束高度（包含）
+     * @return
      */
-    private Map<String, int[]> getAllSpentTXOs() {
-        // 定义TxId ——> spentOutIndex[]，存储交易ID与已被花费的交易输出数组索引值
-        Map<String, int[]> spentTXOs = Maps.newHashMap();
-        for (BlockchainIterator blockchainIterator = this.getBlockchainIterator(); blockchainIterator.hashNext(); ) {
-            Block block = blockchainIterator.next();
-
-            for (Transaction transaction : block.getTransactions()) {
-                // 如果是 coinbase 交易，直接跳过，因为它不存在引用前一个区块的交易输出
-                if (transaction.isCoinbase()) {
-                    continue;
-                }
-                for (TXInput txInput : transaction.getInputs()) {
-                    String inTxId = Hex.encodeHexString(txInput.getTxId());
-                    int[] spentOutIndexArray = spentTXOs.get(inTxId);
-                    if (spentOutIndexArray == null) {
-                        spentOutIndexArray = new int[]{txInput.getTxOutputIndex()};
-                    } else {
-                        spentOutIndexArray = ArrayUtils.add(spentOutIndexArray, txInput.getTxOutputIndex());
-                    }
-                    spentTXOs.put(inTxId, spentOutIndexArray);
-                }
-            }
+    public List<Block> getBlockRange(long from, long to) {
+        List<Block> blocks = Lists.newArrayList();
+        for (BlockchainForwardIterator iterator = new BlockchainForwardIterator(Math.max(from, 0), Math.min(to, this.getBestHeight()));
+             iterator.hasNext(); ) {
+            blocks.add(iterator.next());
         }
-        return spentTXOs;
+        return blocks;
     }
 
+
 //    /**
 //     * 查找钱包地址对应的所有UTXO
 //     *
@@ -222,12 +476,55 @@ public class BlockChain {
      * @param txId 交易ID
      * @return
      */
-    private Transaction findTransaction(byte[] txId) throws Exception {
+    public Transaction findTransaction(byte[] txId) throws Exception {
+        TxLocation txLocation = this.findTxLocation(txId);
+        Block block = RocksDBUtil.getInstance().getBlock(txLocation.getBlockHash());
+        return block.getTransactions()[txLocation.getPosition()];
+    }
+
+    /**
+     * 生成交易的默克尔包含证明，与交易所在区块的区块头一起用于 SPV 验证
+     *
+     * @param txId 交易ID
+     * @return
+     */
+    public MerkleProof getMerkleProof(byte[] txId) throws Exception {
+        TxLocation txLocation = this.findTxLocation(txId);
+        Block block = RocksDBUtil.getInstance().getBlock(txLocation.getBlockHash());
+        return block.getMerkleProof(txLocation.getPosition());
+    }
+
+    /**
+     * 查询区块头
+     *
+     * @param blockHash 区块Hash
+     * @return 区块不存在时返回 null
+     */
+    public BlockHeader getBlockHeader(String blockHash) {
+        Block block = RocksDBUtil.getInstance().getBlock(blockHash);
+        return block == null ? null : BlockHeader.newBlockHeader(block);
+    }
+
+    /**
+     * 依据交易ID查询交易所在的位置，未启用交易索引时遍历区块链
+     *
+     * @param txId 交易ID
+     * @return
+     */
+    public TxLocation findTxLocation(byte[] txId) throws Exception {
+        if (TX_INDEX_ENABLED) {
+            TxLocation txLocation = RocksDBUtil.getInstance().getTxLocation(Hex.encodeHexString(txId));
+            if (txLocation == null) {
+                throw new Exception("ERROR: Can not found tx by txId ! ");
+            }
+            return txLocation;
+        }
         for (BlockchainIterator iterator = this.getBlockchainIterator(); iterator.hashNext(); ) {
             Block block = iterator.next();
-            for (Transaction tx : block.getTransactions()) {
-                if (Arrays.equals(tx.getTxId(), txId)) {
-                    return tx;
+            Transaction[] transactions = block.getTransactions();
+            for (int i = 0; i < transactions.length; i++) {
+                if (Arrays.equals(transactions[i].getTxId(), txId)) {
+                    return new TxLocation(block.getHash(), i);
                 }
             }
         }
@@ -255,16 +552,38 @@ public class BlockChain {
      *
      * @param tx
      */
-    private boolean verifyTransactions(Transaction tx) throws Exception {
-        if (tx.isCoinbase()) {
-            return true;
-        }
-        Map<String, Transaction> prevTx = new HashMap<>();
-        for (TXInput txInput : tx.getInputs()) {
-            Transaction transaction = this.findTransaction(txInput.getTxId());
-            prevTx.put(Hex.encodeHexString(txInput.getTxId()), transaction);
+    public boolean verifyTransactions(Transaction tx) throws Exception {
+        return this.verifyTransactions(new Transaction[]{tx});
+    }
+
+    /**
+     * 批量验证交易签名
+     * <p>
+     * 先收集所有交易输入的签名验证数据，再并行验证，任一签名无效即返回 false。
+     * 交易输入可以引用同一批次中排在前面的交易
+     *
+     * @param transactions
+     * @return
+     */
+    public boolean verifyTransactions(Transaction[] transactions) throws Exception {
+        List<SignatureCheck> checks = Lists.newArrayList();
+        Map<String, Transaction> batchTxs = new HashMap<>();
+        for (Transaction tx : transactions) {
+            if (tx.isCoinbase()) {
+                continue;
+            }
+            Map<String, Transaction> prevTx = new HashMap<>();
+            for (TXInput txInput : tx.getInputs()) {
+                Transaction transaction = batchTxs.get(Hex.encodeHexString(txInput.getTxId()));
+                if (transaction == null) {
+                    transaction = this.findTransaction(txInput.getTxId());
+                }
+                prevTx.put(Hex.encodeHexString(txInput.getTxId()), transaction);
+            }
+            checks.addAll(tx.getSignatureChecks(prevTx));
+            batchTxs.put(Hex.encodeHexString(tx.getTxId()), tx);
         }
-        return tx.verify(prevTx);
+        return SignatureVerifier.verifyAll(checks);
     }
 
 }
@@ -0,0 +1,44 @@
+package blockchain.block;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 区块头，不包含交易数据，交易只以默克尔树根的形式体现
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class BlockHeader {
+    /**
+     * 区块Hash
+     */
+    private String hash;
+    /**
+     * 上一个区块的Hash
+     */
+    private String prevBlockHash;
+    /**
+     * 交易的默克尔树根
+     */
+    private byte[] merkleRoot;
+    private long timestamp;
+    /**
+     * 难度目标位
+     */
+    private int targetBits;
+    private long nonce;
+    private long height;
+
+    /**
+     * 获取区块的区块头
+     *
+     * @param block
+     * @return
+     */
+    public static BlockHeader newBlockHeader(Block block) {
+        return new BlockHeader(block.getHash(), block.getPrevBlockHash(), block.hashTransaction(),
+                block.getTimestamp(), block.getTargetBits(), block.getNonce(), block.getHeight());
+    }
+}
@@ -0,0 +1,47 @@
+package blockchain.block;
+
+import blockchain.utils.RocksDBUtil;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 区块链迭代器,借助区块高度索引正序遍历
+ */
+public class BlockchainForwardIterator implements Iterator<Block> {
+    private long currentHeight; //当前迭代器指向区块的高度
+    private final long endHeight; //遍历结束的高度（包含）
+
+    public BlockchainForwardIterator(long startHeight, long endHeight) {
+        this.currentHeight = startHeight;
+        this.endHeight = endHeight;
+    }
+
+    /**
+     * 是否有下一个区块
+     *
+     * @return
+     */
+    @Override
+    public boolean hasNext() {
+        return currentHeight <= endHeight;
+    }
+
+    /**
+     * 返回区块
+     *
+     * @return
+     */
+    @Override
+    public Block next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String blockHash = RocksDBUtil.getInstance().getBlockHash(currentHeight);
+        if (blockHash == null) {
+            throw new NoSuchElementException("Can not found block hash by height ! height=" + currentHeight);
+        }
+        currentHeight++;
+        return RocksDBUtil.getInstance().getBlock(blockHash);
+    }
+}
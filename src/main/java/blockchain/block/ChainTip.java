@@ -0,0 +1,20 @@
+package blockchain.block;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 最新区块的Hash与高度，整体替换，读取时二者总是对应同一个区块
+ */
+@Data
+@AllArgsConstructor
+public class ChainTip {
+    /**
+     * 最新区块的Hash
+     */
+    private final String hash;
+    /**
+     * 最新区块的高度，空链为 -1
+     */
+    private final long height;
+}
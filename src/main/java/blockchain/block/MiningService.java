@@ -0,0 +1,270 @@
+package blockchain.block;
+
+import blockchain.pow.PowResult;
+import blockchain.pow.ProofOfWork;
+import blockchain.transaction.TXInput;
+import blockchain.transaction.TXOutpoint;
+import blockchain.transaction.Transaction;
+import blockchain.transaction.TransactionValidator;
+import blockchain.utils.LogUtil;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang3.ArrayUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 后台挖矿服务
+ * <p>
+ * 在后台线程中不断基于最新区块创建区块模板并挖矿，挖出的区块提交到区块链。
+ * 最新区块变化或调用 refreshTemplate() 时，立即取消正在进行的工作量证明并重新创建模板，
+ * 挖矿的线程数由 -Dharmony.pow.threads 配置
+ */
+public class MiningService {
+
+    /**
+     * 区块模板的交易来源
+     */
+    @FunctionalInterface
+    public interface TemplateProvider {
+        /**
+         * 获取需要打包的交易，不包含 coinbase 交易
+         *
+         * @return
+         */
+        Transaction[] getTransactions();
+    }
+
+    private final BlockChain blockchain;
+    /**
+     * 接收挖矿奖励的钱包地址
+     */
+    private final String minerAddress;
+    private volatile TemplateProvider templateProvider = () -> new Transaction[]{};
+    private final Consumer<Block> tipListener = this::onNewBlock;
+
+    private ExecutorService executor;
+    private volatile boolean running;
+    private volatile boolean paused;
+    /**
+     * 正在进行的工作量证明
+     */
+    private volatile ProofOfWork currentWork;
+    /**
+     * 区块模板的版本，每次 refreshTemplate() 加 1。
+     * 在获取交易之后、发布 currentWork 之前到达的刷新无法通过取消 currentWork 生效，发布后据此再检查一次
+     */
+    private final AtomicLong templateGeneration = new AtomicLong();
+    private volatile long minedBlocks;
+
+    public MiningService(BlockChain blockchain, String minerAddress) {
+        this.blockchain = blockchain;
+        this.minerAddress = minerAddress;
+    }
+
+    public void setTemplateProvider(TemplateProvider templateProvider) {
+        this.templateProvider = templateProvider;
+        this.refreshTemplate();
+    }
+
+    /**
+     * 启动挖矿
+     */
+    public synchronized void start() {
+        if (this.running) {
+            return;
+        }
+        this.running = true;
+        this.paused = false;
+        this.blockchain.addBlockListener(this.tipListener);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mining-service");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.submit(this::mine);
+        LogUtil.d("Mining service started ! miner=" + this.minerAddress);
+    }
+
+    /**
+     * 停止挖矿，等待后台线程退出
+     */
+    public void stop() {
+        ExecutorService executor;
+        synchronized (this) {
+            if (!this.running) {
+                return;
+            }
+            this.running = false;
+            this.blockchain.removeBlockListener(this.tipListener);
+            this.cancelCurrentWork();
+            this.notifyAll();
+            executor = this.executor;
+            this.executor = null;
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                LogUtil.d("Waiting for mining service to stop ! ");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LogUtil.d("Mining service stopped ! minedBlocks=" + this.minedBlocks);
+    }
+
+    /**
+     * 暂停挖矿，放弃正在进行的工作
+     */
+    public synchronized void pause() {
+        this.paused = true;
+        this.cancelCurrentWork();
+    }
+
+    /**
+     * 恢复挖矿
+     */
+    public synchronized void resume() {
+        this.paused = false;
+        this.notifyAll();
+    }
+
+    /**
+     * 放弃当前的区块模板，重新获取交易创建新的模板，用于有新交易到达时
+     */
+    public void refreshTemplate() {
+        this.templateGeneration.incrementAndGet();
+        this.cancelCurrentWork();
+    }
+
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    public boolean isPaused() {
+        return this.paused;
+    }
+
+    public long getMinedBlocks() {
+        return this.minedBlocks;
+    }
+
+    /**
+     * 新区块连接到区块链后回调，区块模板不再基于最新区块时放弃当前工作
+     *
+     * @param block
+     */
+    private void onNewBlock(Block block) {
+        ProofOfWork work = this.currentWork;
+        if (work != null && !block.getHash().equals(work.getBlock().getPrevBlockHash())) {
+            work.cancel();
+        }
+    }
+
+    private void cancelCurrentWork() {
+        ProofOfWork work = this.currentWork;
+        if (work != null) {
+            work.cancel();
+        }
+    }
+
+    /**
+     * 挖矿主循环
+     */
+    private void mine() {
+        while (this.running) {
+            try {
+                synchronized (this) {
+                    while (this.running && this.paused) {
+                        this.wait();
+                    }
+                }
+                if (!this.running) {
+                    break;
+                }
+                long generation = this.templateGeneration.get();
+                Block block = this.newBlockTemplate();
+                ProofOfWork work = ProofOfWork.newProofOfWork(block);
+                this.currentWork = work;
+                // 创建模板期间最新区块可能已变化、模板已被刷新，或者已被暂停
+                if (!block.getPrevBlockHash().equals(this.blockchain.getLastBlockHash())
+                        || generation != this.templateGeneration.get() || this.paused || !this.running) {
+                    this.currentWork = null;
+                    continue;
+                }
+                PowResult powResult = work.run();
+                this.currentWork = null;
+                if (powResult == null) {
+                    LogUtil.d("Drop stale block template ! height=" + block.getHeight());
+                    continue;
+                }
+                block.setHash(powResult.getShaHex());
+                block.setNonce(powResult.getNonce());
+                if (this.blockchain.submitBlock(block)) {
+                    this.minedBlocks++;
+                    LogUtil.d("Mined block ! height=" + block.getHeight() + " hash=" + block.getHash());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                this.currentWork = null;
+                LogUtil.d("Fail to mine block ! " + e);
+            }
+        }
+    }
+
+    /**
+     * 逐笔验证交易，剔除无效的交易
+     * <p>
+     * 每笔交易只验证一次，规则与交易池相同：交易输入引用的交易输出必须来自排在前面已被接受的交易，
+     * 或者是区块链上未花费的UTXO，且没有被已接受的交易花费过
+     *
+     * @param transactions
+     * @return
+     */
+    private Transaction[] selectValidTransactions(Transaction[] transactions) {
+        List<Transaction> accepted = Lists.newArrayListWithCapacity(transactions.length);
+        Map<String, Transaction> acceptedTxs = Maps.newHashMap();
+        Map<TXOutpoint, String> spentOutpoints = Maps.newHashMap();
+        for (Transaction tx : transactions) {
+            String txId = Hex.encodeHexString(tx.getTxId());
+            try {
+                TransactionValidator.validate(tx, acceptedTxs, spentOutpoints, this.blockchain);
+            } catch (Exception e) {
+                LogUtil.d("Drop invalid transaction from block template ! txId=" + txId + " " + e.getMessage());
+                continue;
+            }
+            accepted.add(tx);
+            acceptedTxs.put(txId, tx);
+            for (TXInput txInput : tx.getInputs()) {
+                spentOutpoints.put(new TXOutpoint(Hex.encodeHexString(txInput.getTxId()), txInput.getTxOutputIndex()), txId);
+            }
+        }
+        return accepted.toArray(new Transaction[0]);
+    }
+
+    /**
+     * 基于最新区块创建区块模板，coinbase 交易排在第一位，无效的交易不会被打包
+     *
+     * @return
+     */
+    private Block newBlockTemplate() throws Exception {
+        ChainTip tip = this.blockchain.getTip();
+        String prevBlockHash = tip.getHash();
+        long height = tip.getHeight() + 1;
+        Transaction[] transactions = this.selectValidTransactions(this.templateProvider.getTransactions());
+        transactions = ArrayUtils.insert(0, transactions, Transaction.newCoinbaseTX(this.minerAddress, ""));
+        Block block = new Block(System.currentTimeMillis(), transactions, prevBlockHash, null);
+        block.setHeight(height);
+        block.setTargetBits(this.blockchain.getNextTargetBits(height));
+        return block;
+    }
+}
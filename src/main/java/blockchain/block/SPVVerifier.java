@@ -0,0 +1,46 @@
+package blockchain.block;
+
+import blockchain.pow.ProofOfWork;
+import blockchain.transaction.MerkleProof;
+import blockchain.transaction.Transaction;
+
+import java.util.Arrays;
+
+/**
+ * 简单支付验证（SPV）
+ * <p>
+ * 只需要区块头和默克尔包含证明即可确认交易已被打包进区块，不需要下载完整的区块
+ */
+public class SPVVerifier {
+
+    private SPVVerifier() {
+    }
+
+    /**
+     * 验证交易包含在区块中
+     *
+     * @param tx     交易
+     * @param proof  默克尔包含证明
+     * @param header 交易所在区块的区块头
+     * @return
+     */
+    public static boolean verifyTransaction(Transaction tx, MerkleProof proof, BlockHeader header) {
+        return verify(tx.hash(), proof, header);
+    }
+
+    /**
+     * 验证叶子节点Hash包含在区块中：区块头的工作量证明有效，且由证明计算出的默克尔树根与区块头一致
+     *
+     * @param leafHash 交易Hash
+     * @param proof    默克尔包含证明
+     * @param header   区块头
+     * @return
+     */
+    public static boolean verify(byte[] leafHash, MerkleProof proof, BlockHeader header) {
+        if (proof == null || header == null || !ProofOfWork.validate(header)) {
+            return false;
+        }
+        byte[] root = proof.computeRoot(leafHash);
+        return root != null && Arrays.equals(root, header.getMerkleRoot());
+    }
+}
@@ -0,0 +1,22 @@
+package blockchain.block;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 交易在区块链中的位置，交易索引的 value
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class TxLocation {
+    /**
+     * 所在区块的Hash
+     */
+    private String blockHash;
+    /**
+     * 在区块交易列表中的下标
+     */
+    private int position;
+}
@@ -3,21 +3,34 @@ package blockchain.cli;
 import blockchain.block.Block;
 import blockchain.block.BlockChain;
 import blockchain.block.BlockchainIterator;
+import blockchain.block.MiningService;
 import blockchain.pow.ProofOfWork;
-import blockchain.transaction.TXOutput;
+import blockchain.rpc.NodeService;
+import blockchain.rpc.RpcClient;
+import blockchain.rpc.RpcServer;
+import blockchain.transaction.BatchPayment;
+import blockchain.transaction.Mempool;
+import blockchain.transaction.Payment;
+import blockchain.transaction.SignatureCache;
 import blockchain.transaction.Transaction;
+import blockchain.transaction.UTXOCache;
 import blockchain.transaction.UTXOSet;
 import blockchain.utils.Base58Check;
 import blockchain.utils.LogUtil;
 import blockchain.utils.RocksDBUtil;
 import blockchain.wallet.Wallet;
 import blockchain.wallet.WalletUtil;
+import com.google.common.collect.Maps;
 import org.apache.commons.cli.*;
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * 命令行解析类
@@ -36,11 +49,25 @@ public class CLI {
         Option sendFrom = Option.builder("from").hasArg(true).desc("Source wallet address").build();
         Option sendTo = Option.builder("to").hasArg(true).desc("Destination wallet address").build();
         Option sendAmount = Option.builder("amount").hasArg(true).desc("Amount to send").build();
+        Option startHeight = Option.builder("start").hasArg(true).desc("Start block height of printchain").build();
+        Option endHeight = Option.builder("end").hasArg(true).desc("End block height of printchain").build();
+        Option mineBlocks = Option.builder("blocks").hasArg(true).desc("Number of blocks to mine").build();
+        Option paymentFile = Option.builder("file").hasArg(true).desc("CSV or JSON file of payments (from,to,amount)").build();
+        Option walletCount = Option.builder("count").hasArg(true).desc("Number of wallets to create").build();
+        Option rpcPort = Option.builder("port").hasArg(true).desc("Local RPC port of daemon").build();
+        Option rpcClient = Option.builder("rpc").hasArg(false).desc("Send command to the running daemon").build();
 
         options.addOption(address);
         options.addOption(sendFrom);
         options.addOption(sendTo);
         options.addOption(sendAmount);
+        options.addOption(startHeight);
+        options.addOption(endHeight);
+        options.addOption(mineBlocks);
+        options.addOption(paymentFile);
+        options.addOption(walletCount);
+        options.addOption(rpcPort);
+        options.addOption(rpcClient);
     }
 
     /**
@@ -48,6 +75,11 @@ public class CLI {
      */
     public void parse() {
         this.validateArgs(args);
+        if (Arrays.asList(args).contains("-rpc")) {
+            // 由常驻的节点执行，不打开本地的DB
+            this.parseRpc();
+            return;
+        }
         try {
             CommandLineParser parser = new DefaultParser();
             CommandLine cmd = parser.parse(options, args);
@@ -77,14 +109,52 @@ public class CLI {
                     }
                     this.send(sendFrom, sendTo, Integer.valueOf(sendAmount));
                     break;
+                case "sendbatch":
+                    String file = cmd.getOptionValue("file");
+                    if (StringUtils.isBlank(file)) {
+                        help();
+                    }
+                    this.sendBatch(file);
+                    break;
                 case "createwallet":
                     this.createWallet();
                     break;
+                case "createwallets":
+                    String count = cmd.getOptionValue("count");
+                    if (!NumberUtils.isDigits(count) || Integer.valueOf(count) <= 0) {
+                        help();
+                    }
+                    this.createWallets(Integer.valueOf(count));
+                    break;
                 case "printaddresses":
                     this.printAddresses();
                     break;
                 case "printchain":
-                    this.printChain();
+                    String start = cmd.getOptionValue("start");
+                    String end = cmd.getOptionValue("end");
+                    if (start == null && end == null) {
+                        this.printChain();
+                        break;
+                    }
+                    if ((start != null && !NumberUtils.isDigits(start)) || (end != null && !NumberUtils.isDigits(end))) {
+                        help();
+                    }
+                    this.printChain(start == null ? 0 : Long.valueOf(start), end == null ? Long.MAX_VALUE : Long.valueOf(end));
+                    break;
+                case "mine":
+                    String mineAddress = cmd.getOptionValue("address");
+                    String blocks = cmd.getOptionValue("blocks", "1");
+                    if (StringUtils.isBlank(mineAddress) || !NumberUtils.isDigits(blocks)) {
+                        help();
+                    }
+                    this.mine(mineAddress, Integer.valueOf(blocks));
+                    break;
+                case "daemon":
+                    String port = cmd.getOptionValue("port", String.valueOf(RpcServer.DEFAULT_PORT));
+                    if (!NumberUtils.isDigits(port)) {
+                        help();
+                    }
+                    this.daemon(cmd.getOptionValue("address"), Integer.valueOf(port));
                     break;
                 case "h":
                     this.help();
@@ -95,10 +165,86 @@ public class CLI {
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            SignatureCache signatureCache = SignatureCache.getInstance();
+            if (signatureCache.getHitCount() + signatureCache.getMissCount() > 0) {
+                LogUtil.d("Signature cache hits:" + signatureCache.getHitCount() + " misses:" + signatureCache.getMissCount()
+                        + " hit rate:" + signatureCache.getHitRate());
+            }
+            UTXOCache.getInstance().flush();
             RocksDBUtil.getInstance().closeDB();
         }
     }
 
+    /**
+     * 作为客户端，通过本地 RPC 调用常驻的节点
+     */
+    private void parseRpc() {
+        try {
+            CommandLineParser parser = new DefaultParser();
+            CommandLine cmd = parser.parse(options, args);
+            String port = cmd.getOptionValue("port", String.valueOf(RpcServer.DEFAULT_PORT));
+            if (!NumberUtils.isDigits(port)) {
+                help();
+            }
+            RpcClient client = new RpcClient(Integer.valueOf(port));
+            Map<String, Object> params = Maps.newLinkedHashMap();
+            switch (args[0]) {
+                case "getbalance":
+                    String getBalanceAddress = cmd.getOptionValue("address");
+                    if (StringUtils.isBlank(getBalanceAddress)) {
+                        help();
+                    }
+                    params.put("address", getBalanceAddress);
+                    LogUtil.d("Balance of address:" + getBalanceAddress + " balance:" + client.call("getbalance", params));
+                    break;
+                case "send":
+                    String sendFrom = cmd.getOptionValue("from");
+                    String sendTo = cmd.getOptionValue("to");
+                    String sendAmount = cmd.getOptionValue("amount");
+                    if (StringUtils.isBlank(sendFrom) ||
+                            StringUtils.isBlank(sendTo) ||
+                            !NumberUtils.isDigits(sendAmount)) {
+                        help();
+                    }
+                    params.put("from", sendFrom);
+                    params.put("to", sendTo);
+                    params.put("amount", Long.valueOf(sendAmount));
+                    LogUtil.d("Success! " + client.call("send", params));
+                    break;
+                case "createwallet":
+                    LogUtil.d("wallet address : " + client.call("createwallet", params));
+                    break;
+                case "createwallets":
+                    String count = cmd.getOptionValue("count");
+                    if (!NumberUtils.isDigits(count) || Integer.valueOf(count) <= 0) {
+                        help();
+                    }
+                    params.put("count", Long.valueOf(count));
+                    for (Object address : (List<?>) client.call("createwallets", params)) {
+                        LogUtil.d("wallet address : " + address);
+                    }
+                    break;
+                case "printaddresses":
+                    List<?> addresses = (List<?>) client.call("listaddresses", params);
+                    if (addresses.isEmpty()) {
+                        LogUtil.d("There isn't address");
+                        break;
+                    }
+                    for (Object address : addresses) {
+                        LogUtil.d("Wallet address: " + address);
+                    }
+                    break;
+                case "stop":
+                    LogUtil.d(String.valueOf(client.call("stop", params)));
+                    break;
+                default:
+                    this.help();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * 创建区块链
      *
@@ -146,6 +292,20 @@ public class CLI {
         }
     }
 
+    /**
+     * 正序打印出指定高度区间的区块
+     *
+     * @param start 起始高度（包含）
+     * @param end   结束高度（包含）
+     */
+    private void printChain(long start, long end) throws Exception {
+        BlockChain blockchain = BlockChain.initBlockchainFromDB();
+        for (Block block : blockchain.getBlockRange(start, end)) {
+            boolean validate = ProofOfWork.newProofOfWork(block).validate();
+            LogUtil.d(block.toString() + ", validate = " + validate);
+        }
+    }
+
     /**
      * 查询钱包余额
      *
@@ -165,13 +325,7 @@ public class CLI {
 
         UTXOSet utxoSet = new UTXOSet(blockchain);
 
-        TXOutput[] txOutputs = utxoSet.findUTXOs(pubKeyHash);
-        int balance = 0;
-        if (txOutputs != null && txOutputs.length > 0) {
-            for (TXOutput txOutput : txOutputs) {
-                balance += txOutput.getValue();
-            }
-        }
+        int balance = utxoSet.getBalance(pubKeyHash);
         LogUtil.d("Balance of address:" + address + " balance:" + balance);
     }
 
@@ -184,15 +338,100 @@ public class CLI {
      */
     private void send(String from, String to, int amount) throws Exception {
         BlockChain blockchain = BlockChain.newBlockchain(from);
+        Mempool mempool = Mempool.newMempool(blockchain);
         Transaction transaction = Transaction.newUTXOTransaction(from, to, amount, blockchain);
+        mempool.addTransaction(transaction);
         // 奖励
         Transaction rewardTx = Transaction.newCoinbaseTX(from, "");
-        Block newBlock = blockchain.mineBlock(new Transaction[]{transaction, rewardTx});
-        new UTXOSet(blockchain).update(newBlock);
-        RocksDBUtil.getInstance().closeDB();
+        blockchain.mineBlock(ArrayUtils.insert(0, mempool.getBlockTemplate(), rewardTx));
         LogUtil.d("Success!");
     }
 
+    /**
+     * 批量转账
+     * <p>
+     * 所有转账的交易创建并签名后加入交易池，再按区块模板的大小上限打包到一个或多个区块，
+     * 挖矿奖励归第一笔转账的支付地址
+     *
+     * @param file 转账文件
+     */
+    private void sendBatch(String file) throws Exception {
+        List<Payment> payments = BatchPayment.readPayments(file);
+        if (payments.isEmpty()) {
+            LogUtil.d("There isn't payment");
+            return;
+        }
+        String rewardAddress = payments.get(0).getFrom();
+        BlockChain blockchain = BlockChain.newBlockchain(rewardAddress);
+        Mempool mempool = Mempool.newMempool(blockchain);
+
+        long startTime = System.nanoTime();
+        List<Transaction> transactions = new BatchPayment(blockchain, mempool).createTransactions(payments);
+        long signedTime = System.nanoTime();
+        for (Transaction transaction : transactions) {
+            mempool.addTransaction(transaction);
+        }
+        long admittedTime = System.nanoTime();
+        int blocks = 0;
+        while (mempool.size() > 0) {
+            Transaction[] template = mempool.getBlockTemplate();
+            if (template.length == 0) {
+                throw new Exception("ERROR: Transaction exceeds block template size ! ");
+            }
+            blockchain.mineBlock(ArrayUtils.insert(0, template, Transaction.newCoinbaseTX(rewardAddress, "")));
+            blocks++;
+        }
+        long endTime = System.nanoTime();
+        float totalSeconds = (endTime - startTime) / 1000000000f;
+        LogUtil.d("Batch payment report: transactions:" + transactions.size() + " blocks:" + blocks
+                + " create(ms):" + (signedTime - startTime) / 1000000f
+                + " mempool(ms):" + (admittedTime - signedTime) / 1000000f
+                + " mine(ms):" + (endTime - admittedTime) / 1000000f
+                + " total(s):" + totalSeconds
+                + " tps:" + transactions.size() / totalSeconds);
+        LogUtil.d("Success!");
+    }
+
+    /**
+     * 启动后台挖矿，挖出指定数量的区块后停止
+     *
+     * @param address 接收挖矿奖励的钱包地址
+     * @param blocks  区块数量
+     */
+    private void mine(String address, int blocks) throws Exception {
+        BlockChain blockchain = BlockChain.newBlockchain(address);
+        CountDownLatch latch = new CountDownLatch(blocks);
+        blockchain.addBlockListener(block -> latch.countDown());
+        Mempool mempool = Mempool.newMempool(blockchain);
+        MiningService miningService = new MiningService(blockchain, address);
+        miningService.setTemplateProvider(mempool::getBlockTemplate);
+        miningService.start();
+        latch.await();
+        miningService.stop();
+        LogUtil.d("Success!");
+    }
+
+    /**
+     * 启动常驻节点，通过本地 JSON-RPC 提供服务，直到收到 stop 请求
+     *
+     * @param address 接收挖矿奖励的钱包地址，为空时不在后台挖矿，每次转账立即挖出一个区块
+     * @param port    RPC 端口
+     */
+    private void daemon(String address, int port) throws Exception {
+        BlockChain blockchain = StringUtils.isBlank(address)
+                ? BlockChain.initBlockchainFromDB() : BlockChain.newBlockchain(address);
+        NodeService nodeService = new NodeService(blockchain, StringUtils.isBlank(address) ? null : address);
+        RpcServer rpcServer = new RpcServer(nodeService, port);
+        nodeService.start();
+        rpcServer.start();
+        try {
+            nodeService.awaitStop();
+        } finally {
+            rpcServer.stop();
+        }
+        LogUtil.d("Daemon stopped ! ");
+    }
+
     /**
      * 创建钱包
      *
@@ -203,6 +442,22 @@ public class CLI {
         LogUtil.d("wallet address : " + wallet.getAddress());
     }
 
+    /**
+     * 批量创建钱包
+     *
+     * @param count 数量
+     * @throws Exception
+     */
+    private void createWallets(int count) throws Exception {
+        long startTime = System.nanoTime();
+        List<Wallet> wallets = WalletUtil.getInstance().createWallets(count);
+        long endTime = System.nanoTime();
+        for (Wallet wallet : wallets) {
+            LogUtil.d("wallet address : " + wallet.getAddress());
+        }
+        LogUtil.d("Create wallets:" + count + " elapsed time(ms):" + (endTime - startTime) / 1000000f);
+    }
+
     /**
      * 打印钱包地址
      *
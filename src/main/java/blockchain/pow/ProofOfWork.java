@@ -1,12 +1,26 @@
 package blockchain.pow;
 
 import blockchain.block.Block;
+import blockchain.block.BlockHeader;
 import blockchain.utils.ByteUtil;
 import blockchain.utils.LogUtil;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import lombok.Data;
 
 import java.math.BigInteger;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * 工作量证明
@@ -14,9 +28,37 @@ import java.math.BigInteger;
 @Data
 public class ProofOfWork {
     /**
-     * 难度目标位
+     * 初始难度目标位，也是旧版本区块（没有记录难度）的难度
      */
     public static final int TARGET_BITS = 16;
+    /**
+     * 难度目标位的取值范围
+     */
+    public static final int MIN_TARGET_BITS = 1;
+    public static final int MAX_TARGET_BITS = 255;
+    /**
+     * 每隔多少个区块调整一次难度
+     * <p>
+     * 与 TARGET_BLOCK_MILLIS 一样属于共识参数，区块链上已有区块的难度按它们校验，因此不可配置
+     */
+    public static final int RETARGET_INTERVAL = 10;
+    /**
+     * 期望的出块间隔（毫秒）
+     */
+    public static final long TARGET_BLOCK_MILLIS = 10000;
+    /**
+     * 单次调整难度目标位的最大幅度，即目标值最多放大或缩小 4 倍
+     */
+    private static final int MAX_RETARGET_STEP = 2;
+    /**
+     * 挖矿线程数，默认为 CPU 核数
+     */
+    private static final int MINER_THREADS = Math.max(1, Integer.parseInt(System.getProperty("harmony.pow.threads",
+            String.valueOf(Runtime.getRuntime().availableProcessors()))));
+    /**
+     * 挖矿线程池，使用守护线程，不阻止进程退出
+     */
+    private static final ExecutorService MINER_POOL = Executors.newFixedThreadPool(MINER_THREADS, new MinerThreadFactory());
 
     /**
      * 区块
@@ -26,25 +68,68 @@ public class ProofOfWork {
      * 难度目标值
      */
     private BigInteger target;
+    /**
+     * 难度目标值的 32 字节大端表示，用于直接与 Hash 比较
+     */
+    private byte[] targetBytes;
+    /**
+     * 是否已取消，挖矿线程在每次计算 Hash 前检查
+     */
+    private volatile boolean cancelled;
 
     private ProofOfWork(Block block, BigInteger target) {
         this.block = block;
         this.target = target;
+        this.targetBytes = targetBytes(target);
+    }
+
+    /**
+     * 难度目标值转为 32 字节大端表示
+     * <p>
+     * toByteArray() 在最高位为 1 时会多出一个符号字节（如目标位为 1 时的 2^255 为 33 字节），只取低 32 字节
+     *
+     * @param target
+     * @return
+     */
+    static byte[] targetBytes(BigInteger target) {
+        byte[] targetBytes = new byte[32];
+        byte[] bytes = target.toByteArray();
+        int length = Math.min(bytes.length, targetBytes.length);
+        System.arraycopy(bytes, bytes.length - length, targetBytes, targetBytes.length - length, length);
+        return targetBytes;
     }
 
     /**
      * 创建新的工作量证明，设定难度目标值
      * <p>
-     * 对1进行移位运算，将1向左移动 (256 - TARGET_BITS) 位，得到我们的难度目标值
+     * 对1进行移位运算，将1向左移动 (256 - 区块难度目标位) 位，得到我们的难度目标值
      *
      * @param block
      * @return
      */
     public static ProofOfWork newProofOfWork(Block block) {
-        BigInteger targetValue = BigInteger.valueOf(1).shiftLeft((256 - TARGET_BITS));
+        BigInteger targetValue = BigInteger.valueOf(1).shiftLeft((256 - block.getTargetBits()));
         return new ProofOfWork(block, targetValue);
     }
 
+    /**
+     * 难度调整
+     * <p>
+     * 根据最近一个调整周期的实际耗时与期望耗时的比值调整难度目标位，
+     * 目标位加 1 相当于目标值减半，单次调整不超过 MAX_RETARGET_STEP
+     *
+     * @param targetBits     上一个区块的难度目标位
+     * @param actualMillis   最近一个调整周期的实际耗时
+     * @param expectedMillis 期望耗时
+     * @return 新的难度目标位
+     */
+    public static int retarget(int targetBits, long actualMillis, long expectedMillis) {
+        double ratio = (double) expectedMillis / Math.max(actualMillis, 1);
+        int step = (int) Math.round(Math.log(ratio) / Math.log(2));
+        step = Math.max(-MAX_RETARGET_STEP, Math.min(MAX_RETARGET_STEP, step));
+        return Math.max(MIN_TARGET_BITS, Math.min(MAX_TARGET_BITS, targetBits + step));
+    }
+
     /**
      * 准备数据
      * <p>
@@ -54,44 +139,143 @@ public class ProofOfWork {
      * @return
      */
     private byte[] prepareData(long nonce) {
-        byte[] prevBlockHashBytes = {};
-        if (this.getBlock().getPrevBlockHash() != null) {
-            prevBlockHashBytes = new BigInteger(this.getBlock().getPrevBlockHash(), 16).toByteArray();
-        }
+        return ByteUtil.byteMergerAll(this.prepareHeader(), ByteUtil.longToByte(nonce));
+    }
 
-//        LogUtil.d("1:" + Arrays.toString(prevBlockHashBytes) + " 2:" + Arrays.toString(this.getBlock().getData().getBytes()) + " 3:" + Arrays.toString(ByteUtil.longToByte(this.getBlock().getTimestamp())) + " 4:" + Arrays.toString(ByteUtil.intToByte(TARGET_BITS)) + " 5:" + Arrays.toString(ByteUtil.longToByte(nonce)));
+    /**
+     * 准备除 nonce 以外的区块头数据，挖矿时只需计算一次
+     *
+     * @return
+     */
+    private byte[] prepareHeader() {
+        return prepareHeader(this.getBlock().getPrevBlockHash(), this.getBlock().hashTransaction(),
+                this.getBlock().getTimestamp(), this.getBlock().getTargetBits());
+    }
 
-        return ByteUtil.merge(
+    private static byte[] prepareHeader(String prevBlockHash, byte[] merkleRoot, long timestamp, int targetBits) {
+        byte[] prevBlockHashBytes = {};
+        if (prevBlockHash != null) {
+            prevBlockHashBytes = new BigInteger(prevBlockHash, 16).toByteArray();
+        }
+        return ByteUtil.byteMergerAll(
                 prevBlockHashBytes,
-                this.getBlock().hashTransaction(),
-                ByteUtil.longToByte(this.getBlock().getTimestamp()),
-                ByteUtil.intToByte(TARGET_BITS),
-                ByteUtil.longToByte(nonce)
+                merkleRoot,
+                ByteUtil.longToByte(timestamp),
+                ByteUtil.intToByte(targetBits)
         );
     }
 
     /**
-     * 运行工作量证明，开始挖矿，找到小于难度目标值的Hash
+     * Hash 是否小于难度目标值，按无符号字节逐位比较
      *
+     * @param hash
      * @return
      */
+    private boolean isBelowTarget(byte[] hash) {
+        return isBelowTarget(hash, this.targetBytes);
+    }
+
+    private static boolean isBelowTarget(byte[] hash, byte[] targetBytes) {
+        for (int i = 0; i < targetBytes.length; i++) {
+            int a = hash[i] & 0xFF;
+            int b = targetBytes[i] & 0xFF;
+            if (a != b) {
+                return a < b;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 运行工作量证明，开始挖矿，找到小于难度目标值的Hash
+     * <p>
+     * 多个线程各自搜索互不重叠的 nonce 区间，任一线程找到结果后全部停止；nonce 空间耗尽时更新时间戳重新搜索
+     *
+     * @return 被取消时返回 null
+     */
     public PowResult run() {
-        long nonce = 0;
-        String shaHex = "";
         long startTime = System.currentTimeMillis();
-        while (nonce < Long.MAX_VALUE) {
-            byte[] data = this.prepareData(nonce);
-            shaHex = DigestUtils.sha256Hex(data);
-//            LogUtil.d("nonce:" + nonce + " shaHex:" + shaHex);
-            if (new BigInteger(shaHex, 16).compareTo(this.target) == -1) {
+        while (true) {
+            PowResult powResult = this.search();
+            if (this.cancelled) {
+                LogUtil.d("Proof of work cancelled ! Elapsed Time:" + (float) (System.currentTimeMillis() - startTime) / 1000);
+                return null;
+            }
+            if (powResult != null) {
                 LogUtil.d("Elapsed Time:" + (float) (System.currentTimeMillis() - startTime) / 1000);
-                LogUtil.d("correct hash Hex:" + shaHex + " nonce:" + nonce);
-                break;
-            } else {
-                nonce++;
+                LogUtil.d("correct hash Hex:" + powResult.getShaHex() + " nonce:" + powResult.getNonce());
+                return powResult;
+            }
+            this.getBlock().setTimestamp(this.getBlock().getTimestamp() + 1);
+        }
+    }
+
+    /**
+     * 在当前时间戳下，多线程搜索整个 nonce 空间
+     *
+     * @return 未找到时返回 null
+     */
+    private PowResult search() {
+        AtomicReference<PowResult> result = new AtomicReference<>();
+        byte[] header = this.prepareHeader();
+        long range = Long.MAX_VALUE / MINER_THREADS;
+        List<Future<?>> futures = new ArrayList<>(MINER_THREADS);
+        for (int i = 0; i < MINER_THREADS; i++) {
+            long startNonce = range * i;
+            long endNonce = i == MINER_THREADS - 1 ? Long.MAX_VALUE : startNonce + range;
+            futures.add(MINER_POOL.submit(() -> this.search(header, startNonce, endNonce, result)));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            // 放入占位结果，让其余线程停止搜索
+            result.compareAndSet(null, new PowResult(-1, null));
+            throw new RuntimeException("Fail to run proof of work ! ", e);
+        }
+        return result.get();
+    }
+
+    /**
+     * 搜索 [startNonce, endNonce) 区间，其他线程找到结果后提前结束
+     * <p>
+     * 区块头缓冲区与 MessageDigest 在线程内复用，每次只改写末尾的 nonce，循环中不分配内存
+     *
+     * @param header     除 nonce 以外的区块头数据
+     * @param startNonce
+     * @param endNonce
+     * @param result
+     */
+    private void search(byte[] header, long startNonce, long endNonce, AtomicReference<PowResult> result) {
+        long startTime = System.nanoTime();
+        long hashes = 0;
+        byte[] data = Arrays.copyOf(header, header.length + Long.BYTES);
+        byte[] hash = new byte[32];
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        try {
+            for (long nonce = startNonce; nonce < endNonce && result.get() == null && !this.cancelled; nonce++) {
+                hashes++;
+                ByteUtil.putLong(data, header.length, nonce);
+                digest.update(data);
+                digest.digest(hash, 0, hash.length);
+                if (this.isBelowTarget(hash)) {
+                    result.compareAndSet(null, new PowResult(nonce, Hex.encodeHexString(hash)));
+                    break;
+                }
             }
+        } catch (DigestException e) {
+            throw new RuntimeException("Fail to hash block header ! ", e);
         }
-        return new PowResult(nonce, shaHex);
+        double seconds = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+        LogUtil.d(String.format("%s hashes:%d rate:%.0f H/s", Thread.currentThread().getName(), hashes, hashes / seconds));
+    }
+
+    /**
+     * 取消挖矿，正在运行的 run() 会尽快返回 null
+     */
+    public void cancel() {
+        this.cancelled = true;
     }
 
     /**
@@ -100,7 +284,45 @@ public class ProofOfWork {
      * @return
      */
     public boolean validate() {
+        int targetBits = this.getBlock().getTargetBits();
+        if (targetBits < MIN_TARGET_BITS || targetBits > MAX_TARGET_BITS) {
+            return false;
+        }
         byte[] data = this.prepareData(this.getBlock().getNonce());
-        return new BigInteger(DigestUtils.sha256Hex(data), 16).compareTo(this.target) == -1;
+        return this.isBelowTarget(DigestUtils.sha256(data));
+    }
+
+    /**
+     * 验证区块头，不需要区块中的交易数据，用于 SPV 验证
+     * <p>
+     * 除了 Hash 小于难度目标值以外，还要求区块头数据的 Hash 与区块头中记录的区块Hash一致
+     *
+     * @param header
+     * @return
+     */
+    public static boolean validate(BlockHeader header) {
+        int targetBits = header.getTargetBits();
+        if (targetBits < MIN_TARGET_BITS || targetBits > MAX_TARGET_BITS) {
+            return false;
+        }
+        byte[] data = ByteUtil.byteMergerAll(prepareHeader(header.getPrevBlockHash(), header.getMerkleRoot(),
+                header.getTimestamp(), targetBits), ByteUtil.longToByte(header.getNonce()));
+        byte[] hash = DigestUtils.sha256(data);
+        return Hex.encodeHexString(hash).equals(header.getHash())
+                && isBelowTarget(hash, targetBytes(BigInteger.valueOf(1).shiftLeft(256 - targetBits)));
+    }
+
+    /**
+     * 挖矿线程工厂
+     */
+    private static class MinerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "pow-miner-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 }
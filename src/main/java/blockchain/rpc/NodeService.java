@@ -0,0 +1,233 @@
+package blockchain.rpc;
+
+import blockchain.block.Block;
+import blockchain.block.BlockChain;
+import blockchain.block.MiningService;
+import blockchain.transaction.BatchPayment;
+import blockchain.transaction.Mempool;
+import blockchain.transaction.Payment;
+import blockchain.transaction.TXInput;
+import blockchain.transaction.TXOutput;
+import blockchain.transaction.Transaction;
+import blockchain.transaction.UTXOSet;
+import blockchain.utils.Base58Check;
+import blockchain.utils.RocksDBUtil;
+import blockchain.wallet.KeyPool;
+import blockchain.wallet.Wallet;
+import blockchain.wallet.WalletUtil;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang3.ArrayUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 节点服务，常驻内存的区块链、交易池以及钱包对外提供的 RPC 方法
+ * <p>
+ * 启动时指定了矿工地址的话，转账只加入交易池，由后台挖矿服务打包；
+ * 否则每次转账立即挖出一个区块，与命令行的 send 行为一致
+ */
+public class NodeService {
+    /**
+     * 单次 createwallets 最多创建的钱包数量
+     */
+    private static final int MAX_CREATE_WALLETS = 10000;
+
+    private final BlockChain blockchain;
+    private final Mempool mempool;
+    /**
+     * 后台挖矿服务，没有指定矿工地址时为 null
+     */
+    private final MiningService miningService;
+    /**
+     * 转账时的选币、加入交易池以及挖矿需要串行执行，避免并发的转账选中相同的UTXO
+     */
+    private final Object sendLock = new Object();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    public NodeService(BlockChain blockchain, String minerAddress) {
+        this.blockchain = blockchain;
+        this.mempool = Mempool.newMempool(blockchain);
+        if (minerAddress == null) {
+            this.miningService = null;
+        } else {
+            this.miningService = new MiningService(blockchain, minerAddress);
+            this.miningService.setTemplateProvider(this.mempool::getBlockTemplate);
+        }
+    }
+
+    /**
+     * 启动后台挖矿以及密钥池的后台补充
+     */
+    public void start() {
+        KeyPool.getInstance().start();
+        if (this.miningService != null) {
+            this.miningService.start();
+        }
+    }
+
+    /**
+     * 等待 stop 方法被调用，然后停止后台挖矿
+     */
+    public void awaitStop() throws InterruptedException {
+        this.stopped.await();
+        if (this.miningService != null) {
+            this.miningService.stop();
+        }
+        this.mempool.close();
+    }
+
+    /**
+     * 调用 RPC 方法
+     *
+     * @param method 方法名
+     * @param params 命名参数
+     * @return 可以被 JsonUtil 序列化的结果
+     */
+    public Object call(String method, Map<String, Object> params) throws Exception {
+        switch (method) {
+            case "getbalance":
+                return this.getBalance(stringParam(params, "address"));
+            case "send":
+                return this.send(stringParam(params, "from"), stringParam(params, "to"), intParam(params, "amount"));
+            case "createwallet":
+                return this.createWallet();
+            case "createwallets":
+                return this.createWallets(intParam(params, "count"));
+            case "listaddresses":
+                return Lists.newArrayList(WalletUtil.getInstance().getAddresses());
+            case "getblockcount":
+                return this.blockchain.getBestHeight();
+            case "getblock":
+                return this.getBlock(params);
+            case "getmempoolinfo":
+                return Collections.singletonMap("size", this.mempool.size());
+            case "getkeypoolinfo":
+                return Collections.singletonMap("size", KeyPool.getInstance().size());
+            case "stop":
+                this.stopped.countDown();
+                return "Stopping";
+            default:
+                throw new RpcException(RpcException.METHOD_NOT_FOUND, "Method not found: " + method);
+        }
+    }
+
+    private int getBalance(String address) throws Exception {
+        byte[] versionedPayload;
+        try {
+            versionedPayload = Base58Check.base58ToBytes(address);
+        } catch (Exception e) {
+            throw new RpcException(RpcException.INVALID_PARAMS, "ERROR: invalid wallet address");
+        }
+        byte[] pubKeyHash = Arrays.copyOfRange(versionedPayload, 1, versionedPayload.length);
+        return new UTXOSet(this.blockchain).getBalance(pubKeyHash);
+    }
+
+    private Map<String, Object> send(String from, String to, int amount) throws Exception {
+        if (amount <= 0) {
+            throw new RpcException(RpcException.INVALID_PARAMS, "Invalid params: amount");
+        }
+        Map<String, Object> result = Maps.newLinkedHashMap();
+        synchronized (this.sendLock) {
+            Transaction transaction = new BatchPayment(this.blockchain, this.mempool)
+                    .createTransactions(Collections.singletonList(new Payment(from, to, amount))).get(0);
+            this.mempool.addTransaction(transaction);
+            result.put("txId", Hex.encodeHexString(transaction.getTxId()));
+            if (this.miningService != null) {
+                this.miningService.refreshTemplate();
+            } else {
+                // 奖励
+                Transaction rewardTx = Transaction.newCoinbaseTX(from, "");
+                Block block = this.blockchain.mineBlock(ArrayUtils.insert(0, this.mempool.getBlockTemplate(), rewardTx));
+                result.put("blockHash", block.getHash());
+            }
+        }
+        return result;
+    }
+
+    private String createWallet() throws Exception {
+        Wallet wallet = WalletUtil.getInstance().createWallet();
+        return wallet.getAddress();
+    }
+
+    private List<String> createWallets(int count) throws Exception {
+        if (count <= 0 || count > MAX_CREATE_WALLETS) {
+            throw new RpcException(RpcException.INVALID_PARAMS, "Invalid params: count");
+        }
+        List<String> addresses = Lists.newArrayListWithCapacity(count);
+        for (Wallet wallet : WalletUtil.getInstance().createWallets(count)) {
+            addresses.add(wallet.getAddress());
+        }
+        return addresses;
+    }
+
+    private Map<String, Object> getBlock(Map<String, Object> params) throws Exception {
+        Block block;
+        if (params.get("hash") != null) {
+            block = RocksDBUtil.getInstance().getBlock(stringParam(params, "hash"));
+        } else {
+            block = this.blockchain.getBlockByHeight(intParam(params, "height"));
+        }
+        if (block == null) {
+            throw new RpcException(RpcException.SERVER_ERROR, "ERROR: Block not found ! ");
+        }
+        Map<String, Object> result = Maps.newLinkedHashMap();
+        result.put("hash", block.getHash());
+        result.put("prevBlockHash", block.getPrevBlockHash());
+        result.put("height", block.getHeight());
+        result.put("timestamp", block.getTimestamp());
+        result.put("nonce", block.getNonce());
+        result.put("targetBits", block.getTargetBits());
+        List<Object> transactions = Lists.newArrayList();
+        for (Transaction tx : block.getTransactions()) {
+            transactions.add(this.transactionToMap(tx));
+        }
+        result.put("transactions", transactions);
+        return result;
+    }
+
+    private Map<String, Object> transactionToMap(Transaction tx) {
+        Map<String, Object> result = Maps.newLinkedHashMap();
+        result.put("txId", Hex.encodeHexString(tx.getTxId()));
+        List<Object> inputs = Lists.newArrayList();
+        if (!tx.isCoinbase()) {
+            for (TXInput txInput : tx.getInputs()) {
+                Map<String, Object> input = Maps.newLinkedHashMap();
+                input.put("txId", Hex.encodeHexString(txInput.getTxId()));
+                input.put("index", txInput.getTxOutputIndex());
+                inputs.add(input);
+            }
+        }
+        result.put("inputs", inputs);
+        List<Object> outputs = Lists.newArrayList();
+        for (TXOutput txOutput : tx.getOutputs()) {
+            Map<String, Object> output = Maps.newLinkedHashMap();
+            output.put("value", txOutput.getValue());
+            output.put("pubKeyHash", Hex.encodeHexString(txOutput.getPubKeyHash()));
+            outputs.add(output);
+        }
+        result.put("outputs", outputs);
+        return result;
+    }
+
+    private static String stringParam(Map<String, Object> params, String name) throws RpcException {
+        Object value = params.get(name);
+        if (!(value instanceof String) || ((String) value).isEmpty()) {
+            throw new RpcException(RpcException.INVALID_PARAMS, "Invalid params: " + name);
+        }
+        return (String) value;
+    }
+
+    private static int intParam(Map<String, Object> params, String name) throws RpcException {
+        Object value = params.get(name);
+        if (!(value instanceof Long) || (Long) value > Integer.MAX_VALUE || (Long) value < Integer.MIN_VALUE) {
+            throw new RpcException(RpcException.INVALID_PARAMS, "Invalid params: " + name);
+        }
+        return ((Long) value).intValue();
+    }
+}
@@ -0,0 +1,86 @@
+package blockchain.rpc;
+
+import blockchain.utils.JsonUtil;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地 JSON-RPC 客户端，命令行通过它调用常驻的节点
+ * <p>
+ * 访问令牌读取自节点启动时写入的 cookie 文件
+ */
+public class RpcClient {
+    private final URL url;
+    private final String token;
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    public RpcClient(int port) throws Exception {
+        this.url = new URL("http", "127.0.0.1", port, "/");
+        this.token = RpcServer.readCookie();
+    }
+
+    /**
+     * 调用 RPC 方法
+     *
+     * @param method 方法名
+     * @param params 命名参数
+     * @return 方法的结果
+     */
+    public Object call(String method, Map<String, Object> params) throws Exception {
+        Map<String, Object> request = Maps.newLinkedHashMap();
+        request.put("jsonrpc", "2.0");
+        request.put("method", method);
+        request.put("params", params);
+        request.put("id", this.nextId.getAndIncrement());
+        byte[] body = JsonUtil.toJson(request).getBytes(StandardCharsets.UTF_8);
+
+        HttpURLConnection connection = (HttpURLConnection) this.url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Authorization", "Bearer " + this.token);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(body);
+            }
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new Exception("ERROR: Unexpected rpc response status " + connection.getResponseCode() + " ! ");
+            }
+            Object response;
+            try (InputStream inputStream = connection.getInputStream()) {
+                response = JsonUtil.parse(readBody(inputStream));
+            }
+            if (!(response instanceof Map)) {
+                throw new Exception("ERROR: Invalid rpc response ! ");
+            }
+            Map<?, ?> responseMap = (Map<?, ?>) response;
+            Object error = responseMap.get("error");
+            if (error instanceof Map) {
+                throw new Exception(String.valueOf(((Map<?, ?>) error).get("message")));
+            }
+            return responseMap.get("result");
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String readBody(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while ((length = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, length);
+        }
+        return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,40 @@
+package blockchain.rpc;
+
+import lombok.Getter;
+
+/**
+ * JSON-RPC 错误
+ */
+public class RpcException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 请求不是合法的 JSON
+     */
+    public static final int PARSE_ERROR = -32700;
+    /**
+     * 请求不是合法的 JSON-RPC 请求
+     */
+    public static final int INVALID_REQUEST = -32600;
+    /**
+     * 方法不存在
+     */
+    public static final int METHOD_NOT_FOUND = -32601;
+    /**
+     * 参数无效
+     */
+    public static final int INVALID_PARAMS = -32602;
+    /**
+     * 执行方法时出错
+     */
+    public static final int SERVER_ERROR = -32000;
+
+    @Getter
+    private final int code;
+
+    public RpcException(int code, String message) {
+        super(message);
+        this.code = code;
+    }
+}
@@ -0,0 +1,324 @@
+package blockchain.rpc;
+
+import blockchain.utils.JsonUtil;
+import blockchain.utils.LogUtil;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 本地 JSON-RPC 服务
+ * <p>
+ * 只监听回环地址，POST 请求体为 JSON-RPC 2.0 请求或批量请求（请求数组），批量请求按顺序执行。
+ * 请求由固定大小的线程池处理，线程数由 -Dharmony.rpc.threads 配置
+ * <p>
+ * 启动时生成随机令牌写入 cookie 文件（仅当前用户可读），请求必须携带 "Authorization: Bearer 令牌"，
+ * Content-Type 必须为 application/json，Host 必须为回环地址，避免浏览器中的网页跨域调用
+ */
+public class RpcServer {
+    /**
+     * 默认端口，可通过 -Dharmony.rpc.port 配置
+     */
+    public static final int DEFAULT_PORT = Integer.parseInt(System.getProperty("harmony.rpc.port", "8345"));
+    private static final int RPC_THREADS = Math.max(1, Integer.parseInt(System.getProperty("harmony.rpc.threads",
+            String.valueOf(Runtime.getRuntime().availableProcessors() * 2))));
+    /**
+     * 请求体的最大字节数，超过时返回 413，可通过 -Dharmony.rpc.body.bytes 配置
+     */
+    private static final int MAX_BODY_BYTES = Integer.parseInt(System.getProperty("harmony.rpc.body.bytes",
+            String.valueOf(8 * 1024 * 1024)));
+
+    /**
+     * cookie 文件，保存访问令牌，可通过 -Dharmony.rpc.cookie 配置
+     */
+    public static final String COOKIE_FILE = System.getProperty("harmony.rpc.cookie", ".rpc.cookie");
+    /**
+     * 允许的 Host（不含端口）
+     */
+    private static final Set<String> LOOPBACK_HOSTS = Sets.newHashSet("127.0.0.1", "localhost", "[::1]");
+
+    private static final String BEARER = "Bearer ";
+
+    private final NodeService nodeService;
+    private final HttpServer httpServer;
+    private final ExecutorService executor;
+    /**
+     * 访问令牌
+     */
+    private final byte[] token;
+
+    public RpcServer(NodeService nodeService, int port) throws IOException {
+        this.nodeService = nodeService;
+        this.token = newToken().getBytes(StandardCharsets.UTF_8);
+        this.httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = Executors.newFixedThreadPool(RPC_THREADS, new RpcThreadFactory());
+        this.httpServer.setExecutor(this.executor);
+        this.httpServer.createContext("/", this::handle);
+    }
+
+    public void start() throws IOException {
+        writeCookie(new String(this.token, StandardCharsets.UTF_8));
+        this.httpServer.start();
+        LogUtil.d("RPC server started ! address=" + this.httpServer.getAddress() + " threads:" + RPC_THREADS);
+    }
+
+    /**
+     * 停止服务，等待正在处理的请求最多 1 秒
+     */
+    public void stop() {
+        this.httpServer.stop(1);
+        this.executor.shutdown();
+        try {
+            Files.deleteIfExists(Paths.get(COOKIE_FILE));
+        } catch (IOException e) {
+            LogUtil.d("Fail to delete rpc cookie file ! " + e.getMessage());
+        }
+        LogUtil.d("RPC server stopped ! ");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (!isLoopbackHost(exchange.getRequestHeaders().getFirst("Host"))) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            if (!this.isAuthorized(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (contentType == null || !contentType.trim().toLowerCase().startsWith("application/json")) {
+                exchange.sendResponseHeaders(415, -1);
+                return;
+            }
+            String body = readBody(exchange.getRequestBody(), MAX_BODY_BYTES);
+            if (body == null) {
+                exchange.sendResponseHeaders(413, -1);
+                return;
+            }
+            Object response = this.dispatch(body);
+            if (response == null) {
+                // 只包含通知的请求没有响应
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            byte[] bytes = JsonUtil.toJson(response).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(bytes);
+            }
+        } catch (Throwable e) {
+            // 包括 Error，避免请求处理线程异常退出而连接没有响应
+            LogUtil.d("Fail to handle rpc request ! " + e);
+            if (exchange.getResponseCode() == -1) {
+                exchange.sendResponseHeaders(500, -1);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Host 是否为回环地址，允许带端口
+     *
+     * @param host
+     * @return
+     */
+    private static boolean isLoopbackHost(String host) {
+        if (host == null) {
+            return false;
+        }
+        host = host.trim().toLowerCase();
+        int portIndex = host.lastIndexOf(':');
+        if (portIndex > host.lastIndexOf(']')) {
+            host = host.substring(0, portIndex);
+        }
+        return LOOPBACK_HOSTS.contains(host);
+    }
+
+    private boolean isAuthorized(String authorization) {
+        if (authorization == null || !authorization.startsWith(BEARER)) {
+            return false;
+        }
+        byte[] presented = authorization.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(this.token, presented);
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        return Hex.encodeHexString(bytes);
+    }
+
+    /**
+     * 写入 cookie 文件，支持 POSIX 权限的文件系统上只有当前用户可读写
+     *
+     * @param token
+     */
+    private static void writeCookie(String token) throws IOException {
+        Path path = Paths.get(COOKIE_FILE);
+        Files.deleteIfExists(path);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(path);
+        }
+        Files.write(path, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 读取 cookie 文件中的访问令牌
+     *
+     * @return
+     */
+    public static String readCookie() throws Exception {
+        Path path = Paths.get(COOKIE_FILE);
+        if (!Files.exists(path)) {
+            throw new Exception("ERROR: RPC cookie file not found, is the daemon running ? file=" + path.toAbsolutePath());
+        }
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * 读取请求体
+     *
+     * @param inputStream
+     * @param maxBytes    最大字节数
+     * @return 超过最大字节数时返回 null
+     */
+    private static String readBody(InputStream inputStream, int maxBytes) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while ((length = inputStream.read(buffer)) != -1) {
+            if (outputStream.size() + length > maxBytes) {
+                return null;
+            }
+            outputStream.write(buffer, 0, length);
+        }
+        return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 解析并执行请求
+     *
+     * @param body 请求体
+     * @return 响应，全部为通知时返回 null
+     */
+    private Object dispatch(String body) {
+        Object request;
+        try {
+            request = JsonUtil.parse(body);
+        } catch (RuntimeException e) {
+            return errorResponse(null, new RpcException(RpcException.PARSE_ERROR, "Parse error"));
+        }
+        if (!(request instanceof List)) {
+            return this.execute(request);
+        }
+        List<?> requests = (List<?>) request;
+        if (requests.isEmpty()) {
+            return errorResponse(null, new RpcException(RpcException.INVALID_REQUEST, "Invalid request"));
+        }
+        List<Object> responses = Lists.newArrayList();
+        for (Object item : requests) {
+            Object response = this.execute(item);
+            if (response != null) {
+                responses.add(response);
+            }
+        }
+        return responses.isEmpty() ? null : responses;
+    }
+
+    /**
+     * 执行单个请求
+     *
+     * @param request
+     * @return 响应，通知（没有 id 的请求）返回 null
+     */
+    @SuppressWarnings("unchecked")
+    private Object execute(Object request) {
+        if (!(request instanceof Map)) {
+            return errorResponse(null, new RpcException(RpcException.INVALID_REQUEST, "Invalid request"));
+        }
+        Map<String, Object> map = (Map<String, Object>) request;
+        Object id = map.get("id");
+        boolean notification = !map.containsKey("id");
+        Object method = map.get("method");
+        Object params = map.get("params");
+        if (!(method instanceof String) || (params != null && !(params instanceof Map))) {
+            return errorResponse(id, new RpcException(RpcException.INVALID_REQUEST, "Invalid request"));
+        }
+        try {
+            Map<String, Object> namedParams = params == null ? Maps.newHashMap() : (Map<String, Object>) params;
+            Object result = this.nodeService.call((String) method, namedParams);
+            if (notification) {
+                return null;
+            }
+            Map<String, Object> response = Maps.newLinkedHashMap();
+            response.put("jsonrpc", "2.0");
+            response.put("result", result);
+            response.put("id", id);
+            return response;
+        } catch (RpcException e) {
+            return notification ? null : errorResponse(id, e);
+        } catch (Exception e) {
+            LogUtil.d("Fail to execute rpc method " + method + " ! " + e.getMessage());
+            return notification ? null : errorResponse(id, new RpcException(RpcException.SERVER_ERROR, e.getMessage()));
+        }
+    }
+
+    private static Map<String, Object> errorResponse(Object id, RpcException e) {
+        Map<String, Object> error = Maps.newLinkedHashMap();
+        error.put("code", e.getCode());
+        error.put("message", e.getMessage());
+        Map<String, Object> response = Maps.newLinkedHashMap();
+        response.put("jsonrpc", "2.0");
+        response.put("error", error);
+        response.put("id", id);
+        return response;
+    }
+
+    /**
+     * RPC 线程工厂
+     */
+    private static class RpcThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "rpc-worker-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
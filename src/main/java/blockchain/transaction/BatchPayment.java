@@ -0,0 +1,311 @@
+package blockchain.transaction;
+
+import blockchain.block.BlockChain;
+import blockchain.utils.BtcAddressUtil;
+import blockchain.utils.JsonUtil;
+import blockchain.utils.LogUtil;
+import blockchain.wallet.Wallet;
+import blockchain.wallet.WalletUtil;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批量转账
+ * <p>
+ * 为每一笔转账创建一个交易，同一支付地址的交易依次选取UTXO，已被选取的UTXO不会再次使用，
+ * 找零输出可以被后面的交易继续花费，交易池中支付地址未被花费的找零也会被选取。
+ * 交易ID在签名前就已确定，因此所有交易创建完成后再并行签名，签名的线程数由 -Dharmony.sign.threads 配置，默认为 CPU 核数
+ */
+public class BatchPayment {
+    private static final int SIGN_THREADS = Math.max(1, Integer.parseInt(System.getProperty("harmony.sign.threads",
+            String.valueOf(Runtime.getRuntime().availableProcessors()))));
+    private static final ExecutorService SIGN_POOL = Executors.newFixedThreadPool(SIGN_THREADS, new SignerThreadFactory());
+
+    private final BlockChain blockchain;
+    /**
+     * 用于排除已被未确认交易花费的UTXO，并花费未确认交易的找零
+     */
+    private final Mempool mempool;
+    /**
+     * 已查询过的区块链中的交易
+     */
+    private final Map<String, Transaction> confirmedTxs = Maps.newHashMap();
+
+    public BatchPayment(BlockChain blockchain, Mempool mempool) {
+        this.blockchain = blockchain;
+        this.mempool = mempool;
+    }
+
+    /**
+     * 读取转账文件
+     * <p>
+     * 支持两种格式：
+     * 1）CSV，每行 from,to,amount，忽略空行、# 开头的注释行以及表头；
+     * 2）JSON，[{"from":"...","to":"...","amount":1}, ...]
+     *
+     * @param file 文件路径，.json 结尾时按 JSON 解析
+     * @return
+     */
+    public static List<Payment> readPayments(String file) throws Exception {
+        String content = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+        if (file.toLowerCase().endsWith(".json")) {
+            return parseJsonPayments(content);
+        }
+        return parseCsvPayments(content);
+    }
+
+    private static List<Payment> parseCsvPayments(String content) throws Exception {
+        List<Payment> payments = Lists.newArrayList();
+        String[] lines = content.split("\r?\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] columns = line.split(",");
+            if (columns.length == 3 && payments.isEmpty() && "amount".equalsIgnoreCase(columns[2].trim())) {
+                continue;
+            }
+            if (columns.length != 3 || !NumberUtils.isDigits(columns[2].trim())) {
+                throw new Exception("ERROR: Invalid payment at line " + (i + 1) + " ! ");
+            }
+            payments.add(newPayment(columns[0].trim(), columns[1].trim(), Integer.parseInt(columns[2].trim()), i + 1));
+        }
+        return payments;
+    }
+
+    private static List<Payment> parseJsonPayments(String content) throws Exception {
+        Object json = JsonUtil.parse(content);
+        if (!(json instanceof List)) {
+            throw new Exception("ERROR: Payments json must be an array ! ");
+        }
+        List<Payment> payments = Lists.newArrayList();
+        List<?> rows = (List<?>) json;
+        for (int i = 0; i < rows.size(); i++) {
+            if (!(rows.get(i) instanceof Map)) {
+                throw new Exception("ERROR: Invalid payment at index " + i + " ! ");
+            }
+            Map<?, ?> row = (Map<?, ?>) rows.get(i);
+            Object from = row.get("from");
+            Object to = row.get("to");
+            Object amount = row.get("amount");
+            if (!(from instanceof String) || !(to instanceof String) || !(amount instanceof Long)
+                    || (Long) amount > Integer.MAX_VALUE) {
+                throw new Exception("ERROR: Invalid payment at index " + i + " ! ");
+            }
+            payments.add(newPayment((String) from, (String) to, ((Long) amount).intValue(), i));
+        }
+        return payments;
+    }
+
+    private static Payment newPayment(String from, String to, int amount, int position) throws Exception {
+        if (StringUtils.isBlank(from) || StringUtils.isBlank(to) || amount <= 0) {
+            throw new Exception("ERROR: Invalid payment at " + position + " ! ");
+        }
+        return new Payment(from, to, amount);
+    }
+
+    /**
+     * 为每一笔转账创建并签名交易
+     *
+     * @param payments
+     * @return 按转账顺序排列的交易，被引用的交易排在引用它的交易之前
+     */
+    public List<Transaction> createTransactions(List<Payment> payments) throws Exception {
+        long startTime = System.nanoTime();
+        Map<String, Sender> senders = Maps.newHashMap();
+        Map<String, Transaction> batchTxs = Maps.newHashMap();
+        List<Transaction> transactions = Lists.newArrayListWithCapacity(payments.size());
+        List<Callable<Void>> signJobs = Lists.newArrayListWithCapacity(payments.size());
+        for (Payment payment : payments) {
+            Sender sender = senders.get(payment.getFrom());
+            if (sender == null) {
+                sender = this.newSender(payment.getFrom());
+                senders.put(payment.getFrom(), sender);
+            }
+            Transaction tx = this.newTransaction(sender, payment);
+            transactions.add(tx);
+            batchTxs.put(Hex.encodeHexString(tx.getTxId()), tx);
+        }
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction tx = transactions.get(i);
+            Map<String, Transaction> prevTxMap = this.prevTxMap(tx, batchTxs);
+            Wallet wallet = senders.get(payments.get(i).getFrom()).wallet;
+            signJobs.add(() -> {
+                tx.sign(wallet.getPrivateKey(), prevTxMap);
+                return null;
+            });
+        }
+        long builtTime = System.nanoTime();
+        this.signAll(signJobs);
+        long signedTime = System.nanoTime();
+        LogUtil.d("Batch payment transactions:" + transactions.size()
+                + " build(ms):" + (builtTime - startTime) / 1000000f
+                + " sign(ms):" + (signedTime - builtTime) / 1000000f
+                + " sign threads:" + SIGN_THREADS);
+        return transactions;
+    }
+
+    /**
+     * 加载支付地址的钱包以及可以花费的交易输出：没有被交易池花费的UTXO，以及交易池中未被花费的交易输出
+     *
+     * @param address
+     * @return
+     */
+    private Sender newSender(String address) throws Exception {
+        Wallet wallet = WalletUtil.getInstance().getWallet(address);
+        if (wallet == null) {
+            throw new Exception("ERROR: Wallet not found ! address=" + address);
+        }
+        Sender sender = new Sender(wallet);
+        byte[] pubKeyHash = BtcAddressUtil.ripeMD160Hash(wallet.getPublicKey());
+        for (Map.Entry<TXOutpoint, TXOutput> entry : new UTXOSet(this.blockchain).findUnspentOutputs(pubKeyHash).entrySet()) {
+            if (this.mempool == null || !this.mempool.isSpent(entry.getKey())) {
+                sender.unspentOutputs.addLast(entry);
+            }
+        }
+        if (this.mempool != null) {
+            // 交易池中未确认的找零也可以继续花费，交易池接受引用池中交易的交易
+            for (Map.Entry<TXOutpoint, TXOutput> entry : this.mempool.findUnspentOutputs(pubKeyHash).entrySet()) {
+                sender.unspentOutputs.addLast(entry);
+            }
+        }
+        return sender;
+    }
+
+    /**
+     * 创建未签名的交易，依次选取支付地址还没有使用过的UTXO，找零加入支付地址的可用UTXO
+     *
+     * @param sender
+     * @param payment
+     * @return
+     */
+    private Transaction newTransaction(Sender sender, Payment payment) throws Exception {
+        int accumulated = 0;
+        List<TXInput> inputs = Lists.newArrayList();
+        while (accumulated < payment.getAmount()) {
+            Map.Entry<TXOutpoint, TXOutput> utxo = sender.unspentOutputs.pollFirst();
+            if (utxo == null) {
+                throw new Exception("ERROR: Not enough funds ! from=" + payment.getFrom() + " to=" + payment.getTo()
+                        + " amount=" + payment.getAmount());
+            }
+            TXOutpoint outpoint = utxo.getKey();
+            inputs.add(new TXInput(Hex.decodeHex(outpoint.getTxId().toCharArray()), outpoint.getIndex(), null,
+                    sender.wallet.getPublicKey()));
+            accumulated += utxo.getValue().getValue();
+        }
+        TXInput[] txInputs = inputs.toArray(new TXInput[0]);
+
+        TXOutput[] txOutputs;
+        if (accumulated > payment.getAmount()) {
+            txOutputs = new TXOutput[]{TXOutput.newTXOutput(payment.getAmount(), payment.getTo()),
+                    TXOutput.newTXOutput(accumulated - payment.getAmount(), payment.getFrom())};
+        } else {
+            txOutputs = new TXOutput[]{TXOutput.newTXOutput(payment.getAmount(), payment.getTo())};
+        }
+
+        Transaction tx = new Transaction(null, txInputs, txOutputs);
+        tx.setTxId(tx.hash());
+        if (txOutputs.length > 1) {
+            sender.unspentOutputs.addLast(Maps.immutableEntry(new TXOutpoint(Hex.encodeHexString(tx.getTxId()), 1), txOutputs[1]));
+        }
+        return tx;
+    }
+
+    /**
+     * 查找交易输入所引用的交易，依次查找本批次、交易池以及区块链中的交易
+     *
+     * @param tx
+     * @param batchTxs
+     * @return
+     */
+    private Map<String, Transaction> prevTxMap(Transaction tx, Map<String, Transaction> batchTxs) throws Exception {
+        Map<String, Transaction> prevTxMap = Maps.newHashMap();
+        for (TXInput txInput : tx.getInputs()) {
+            String prevTxId = Hex.encodeHexString(txInput.getTxId());
+            Transaction prevTx = batchTxs.get(prevTxId);
+            if (prevTx == null && this.mempool != null) {
+                prevTx = this.mempool.getTransaction(prevTxId);
+            }
+            if (prevTx == null) {
+                prevTx = this.confirmedTxs.get(prevTxId);
+                if (prevTx == null) {
+                    prevTx = this.blockchain.findTransaction(txInput.getTxId());
+                    this.confirmedTxs.put(prevTxId, prevTx);
+                }
+            }
+            prevTxMap.put(prevTxId, prevTx);
+        }
+        return prevTxMap;
+    }
+
+    /**
+     * 将签名任务平均分给签名线程
+     *
+     * @param signJobs
+     */
+    private void signAll(List<Callable<Void>> signJobs) throws Exception {
+        int chunkSize = (signJobs.size() + SIGN_THREADS - 1) / SIGN_THREADS;
+        List<Callable<Void>> chunks = Lists.newArrayList();
+        for (int from = 0; from < signJobs.size(); from += chunkSize) {
+            List<Callable<Void>> chunk = signJobs.subList(from, Math.min(from + chunkSize, signJobs.size()));
+            chunks.add(() -> {
+                for (Callable<Void> job : chunk) {
+                    job.call();
+                }
+                return null;
+            });
+        }
+        for (Future<Void> future : SIGN_POOL.invokeAll(chunks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new Exception("ERROR: Fail to sign transactions ! ", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * 支付地址的钱包以及可以花费的UTXO
+     */
+    private static class Sender {
+        private final Wallet wallet;
+        private final Deque<Map.Entry<TXOutpoint, TXOutput>> unspentOutputs = new ArrayDeque<>();
+
+        Sender(Wallet wallet) {
+            this.wallet = wallet;
+        }
+    }
+
+    /**
+     * 签名线程工厂
+     */
+    private static class SignerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "batch-signer-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package blockchain.transaction;
+
+import blockchain.block.Block;
+import blockchain.block.BlockChain;
+import blockchain.utils.CodecUtil;
+import blockchain.utils.LogUtil;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.codec.binary.Hex;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * 交易池
+ * <p>
+ * 在内存中保存已验证但还没有被打包的交易。交易输入可以引用 UTXO 池中的交易输出，
+ * 也可以引用交易池中其他未确认交易的交易输出（链式未确认交易）。
+ * 每个交易输出位置只能被交易池中的一笔交易花费，重复花费的交易会被拒绝。
+ * 区块连接到区块链后，区块中的交易以及与之冲突的交易会从交易池中移除
+ */
+public class Mempool {
+    /**
+     * 区块模板中交易的最大字节数，可通过 -Dharmony.mempool.block.bytes 配置
+     */
+    public static final int MAX_BLOCK_BYTES = Integer.parseInt(System.getProperty("harmony.mempool.block.bytes", "1000000"));
+
+    private final BlockChain blockchain;
+    /**
+     * 交易ID -> 交易，按加入交易池的顺序排列，被引用的交易总是排在引用它的交易之前
+     */
+    private final Map<String, Transaction> transactions = new LinkedHashMap<>();
+    /**
+     * 已被交易池中的交易花费的交易输出位置 -> 花费它的交易ID
+     */
+    private final Map<TXOutpoint, String> spentOutpoints = Maps.newHashMap();
+    private final Consumer<Block> blockListener = this::removeBlockTransactions;
+
+    private Mempool(BlockChain blockchain) {
+        this.blockchain = blockchain;
+    }
+
+    /**
+     * 创建交易池，并监听区块链的新区块
+     *
+     * @param blockchain
+     * @return
+     */
+    public static Mempool newMempool(BlockChain blockchain) {
+        Mempool mempool = new Mempool(blockchain);
+        blockchain.addBlockListener(mempool.blockListener);
+        return mempool;
+    }
+
+    /**
+     * 停止监听区块链的新区块
+     */
+    public void close() {
+        this.blockchain.removeBlockListener(this.blockListener);
+    }
+
+    /**
+     * 验证交易并加入交易池
+     *
+     * @param tx 已签名的交易
+     * @throws Exception 交易无效或与交易池中的交易冲突
+     */
+    public synchronized void addTransaction(Transaction tx) throws Exception {
+        String txId = Hex.encodeHexString(tx.getTxId());
+        if (this.transactions.containsKey(txId)) {
+            throw new Exception("ERROR: Transaction already in mempool ! txId=" + txId);
+        }
+
+        TransactionValidator.validate(tx, this.transactions, this.spentOutpoints, this.blockchain);
+
+        this.transactions.put(txId, tx);
+        for (TXInput txInput : tx.getInputs()) {
+            this.spentOutpoints.put(new TXOutpoint(Hex.encodeHexString(txInput.getTxId()), txInput.getTxOutputIndex()), txId);
+        }
+    }
+
+    /**
+     * 创建区块模板，交易总大小不超过 MAX_BLOCK_BYTES
+     *
+     * @return 不包含 coinbase 交易
+     */
+    public Transaction[] getBlockTemplate() {
+        return this.getBlockTemplate(MAX_BLOCK_BYTES);
+    }
+
+    /**
+     * 按加入交易池的顺序选取交易创建区块模板，所引用的未确认交易没有被选中的交易会被跳过
+     *
+     * @param maxBytes 交易总大小的上限
+     * @return 不包含 coinbase 交易
+     */
+    public synchronized Transaction[] getBlockTemplate(int maxBytes) {
+        List<Transaction> selected = Lists.newArrayList();
+        Set<String> selectedTxIds = Sets.newHashSet();
+        int totalBytes = 0;
+        for (Map.Entry<String, Transaction> entry : this.transactions.entrySet()) {
+            Transaction tx = entry.getValue();
+            int size = CodecUtil.transactionSize(tx);
+            if (totalBytes + size > maxBytes || !this.parentsSelected(tx, selectedTxIds)) {
+                continue;
+            }
+            selected.add(tx);
+            selectedTxIds.add(entry.getKey());
+            totalBytes += size;
+        }
+        return selected.toArray(new Transaction[0]);
+    }
+
+    /**
+     * 交易所引用的交易池中的交易是否都已被选中
+     *
+     * @param tx
+     * @param selectedTxIds
+     * @return
+     */
+    private boolean parentsSelected(Transaction tx, Set<String> selectedTxIds) {
+        for (TXInput txInput : tx.getInputs()) {
+            String prevTxId = Hex.encodeHexString(txInput.getTxId());
+            if (this.transactions.containsKey(prevTxId) && !selectedTxIds.contains(prevTxId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 区块连接到区块链后，移除区块中的交易，以及与区块中的交易花费了相同交易输出的交易
+     *
+     * @param block
+     */
+    public synchronized void removeBlockTransactions(Block block) {
+        int before = this.transactions.size();
+        for (Transaction tx : block.getTransactions()) {
+            if (tx.isCoinbase()) {
+                continue;
+            }
+            String txId = Hex.encodeHexString(tx.getTxId());
+            // 已确认的交易，引用它的未确认交易仍然有效
+            this.remove(txId);
+            for (TXInput txInput : tx.getInputs()) {
+                String spender = this.spentOutpoints.get(
+                        new TXOutpoint(Hex.encodeHexString(txInput.getTxId()), txInput.getTxOutputIndex()));
+                if (spender != null) {
+                    this.removeWithDescendants(spender);
+                }
+            }
+        }
+        if (before != this.transactions.size()) {
+            LogUtil.d("Mempool removed transactions:" + (before - this.transactions.size())
+                    + " remaining:" + this.transactions.size());
+        }
+    }
+
+    /**
+     * 移除交易，以及所有直接或间接花费它的交易输出的交易
+     *
+     * @param txId
+     */
+    private void removeWithDescendants(String txId) {
+        Transaction tx = this.remove(txId);
+        if (tx == null) {
+            return;
+        }
+        for (int outIndex = 0; outIndex < tx.getOutputs().length; outIndex++) {
+            String spender = this.spentOutpoints.get(new TXOutpoint(txId, outIndex));
+            if (spender != null) {
+                this.removeWithDescendants(spender);
+            }
+        }
+    }
+
+    /**
+     * 移除交易，释放它花费的交易输出位置
+     *
+     * @param txId
+     * @return 交易不在交易池中时返回 null
+     */
+    private Transaction remove(String txId) {
+        Transaction tx = this.transactions.remove(txId);
+        if (tx == null) {
+            return null;
+        }
+        for (TXInput txInput : tx.getInputs()) {
+            this.spentOutpoints.remove(new TXOutpoint(Hex.encodeHexString(txInput.getTxId()), txInput.getTxOutputIndex()));
+        }
+        return tx;
+    }
+
+    /**
+     * 查询交易池中的交易
+     *
+     * @param txId 交易ID
+     * @return 不存在时返回 null
+     */
+    public synchronized Transaction getTransaction(String txId) {
+        return this.transactions.get(txId);
+    }
+
+    /**
+     * 交易输出位置是否已被交易池中的交易花费
+     *
+     * @param outpoint
+     * @return
+     */
+    public synchronized boolean isSpent(TXOutpoint outpoint) {
+        return this.spentOutpoints.containsKey(outpoint);
+    }
+
+    /**
+     * 查询交易池中锁定到公钥Hash、且没有被交易池中其他交易花费的交易输出（未确认的找零等）
+     *
+     * @param pubKeyHash 公钥Hash
+     * @return 按加入交易池的顺序排列
+     */
+    public synchronized Map<TXOutpoint, TXOutput> findUnspentOutputs(byte[] pubKeyHash) {
+        Map<TXOutpoint, TXOutput> unspentOutputs = Maps.newLinkedHashMap();
+        for (Map.Entry<String, Transaction> entry : this.transactions.entrySet()) {
+            TXOutput[] txOutputs = entry.getValue().getOutputs();
+            for (int outIndex = 0; outIndex < txOutputs.length; outIndex++) {
+                TXOutpoint outpoint = new TXOutpoint(entry.getKey(), outIndex);
+                if (txOutputs[outIndex].isLockedWithKey(pubKeyHash) && !this.spentOutpoints.containsKey(outpoint)) {
+                    unspentOutputs.put(outpoint, txOutputs[outIndex]);
+                }
+            }
+        }
+        return unspentOutputs;
+    }
+
+    public synchronized int size() {
+        return this.transactions.size();
+    }
+}
@@ -0,0 +1,76 @@
+package blockchain.transaction;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.security.MessageDigest;
+
+/**
+ * 默克尔树的包含证明
+ * <p>
+ * 由叶子下标、叶子总数以及从叶子到根路径上的兄弟节点Hash组成。
+ * 根据叶子总数可以推算出每一层的节点数，没有兄弟节点的层不需要在证明中存放Hash
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class MerkleProof {
+    /**
+     * 叶子节点下标
+     */
+    private int index;
+    /**
+     * 叶子节点总数
+     */
+    private int leafCount;
+    /**
+     * 兄弟节点Hash，从底层到顶层
+     */
+    private byte[][] siblings;
+
+    /**
+     * 从叶子节点Hash计算默克尔树根
+     *
+     * @param leafHash
+     * @return 证明数据不完整时返回 null
+     */
+    public byte[] computeRoot(byte[] leafHash) {
+        if (leafHash == null || leafCount < 1 || index < 0 || index >= leafCount || siblings == null) {
+            return null;
+        }
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        byte[] hash = leafHash;
+        int position = index;
+        int size = leafCount;
+        int siblingIndex = 0;
+        boolean bottomLevel = true;
+        // 与 MerkleTree 一致：叶子之上至少有一层
+        while (bottomLevel || size > 1) {
+            if (position % 2 == 1 || position + 1 < size) {
+                if (siblingIndex >= siblings.length) {
+                    return null;
+                }
+                byte[] sibling = siblings[siblingIndex++];
+                if (position % 2 == 1) {
+                    digest.update(sibling);
+                    digest.update(hash);
+                } else {
+                    digest.update(hash);
+                    digest.update(sibling);
+                }
+                hash = digest.digest();
+            } else if (bottomLevel) {
+                // 叶子节点奇数个，最后一个叶子与自身合并
+                digest.update(hash);
+                digest.update(hash);
+                hash = digest.digest();
+            }
+            position /= 2;
+            size = (size + 1) / 2;
+            bottomLevel = false;
+        }
+        return siblingIndex == siblings.length ? hash : null;
+    }
+}
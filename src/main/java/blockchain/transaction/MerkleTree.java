@@ -1,150 +1,192 @@
 package blockchain.transaction;
 
-import blockchain.utils.ByteUtil;
-import com.google.common.collect.Lists;
-import lombok.Data;
 import org.apache.commons.codec.digest.DigestUtils;
 
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * 默克尔树
+ * <p>
+ * 所有层级的节点Hash按层从叶子到根依次存放在同一个字节数组中。
+ * 底层（叶子之上的第一层）节点为奇数个时，复制最后一个叶子参与计算；更上层节点为奇数个时，最后一个节点的Hash直接作为父节点的Hash
  */
-@Data
 public class MerkleTree {
     /**
-     * 根节点
+     * 节点Hash长度
      */
-    private Node root;
+    public static final int HASH_LENGTH = 32;
     /**
-     * 叶子节点Hash
+     * 一层的节点数达到该值时，使用 fork/join 并行计算
      */
-    private byte[][] leafHashes;
-
-    public MerkleTree(byte[][] leafHashes) {
-        constructTree(leafHashes);
-    }
+    private static final int PARALLEL_THRESHOLD = 2048;
+    /**
+     * 每个并行任务至少计算的节点数
+     */
+    private static final int PARALLEL_BATCH_SIZE = 512;
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(DigestUtils::getSha256Digest);
 
     /**
-     * 从底部叶子节点开始往上构建整个Merkle Tree
-     *
-     * @param leafHashes
+     * 所有节点的Hash，第 0 层为叶子节点
+     */
+    private final byte[] nodes;
+    /**
+     * 每层第一个节点的下标
+     */
+    private final int[] levelOffsets;
+    /**
+     * 每层的节点数
      */
-    private void constructTree(byte[][] leafHashes) {
+    private final int[] levelSizes;
+
+    public MerkleTree(byte[][] leafHashes) {
         if (leafHashes == null || leafHashes.length < 1) {
             throw new RuntimeException("ERROR:Fail to construct merkle tree ! leafHashes data invalid ! ");
         }
-        this.leafHashes = leafHashes;
-        List<Node> parents = bottomLevel(leafHashes);
-        while (parents.size() > 1) {
-            parents = internalLevel(parents);
+        // 叶子之上至少有一层，只有一个叶子时也会与自身合并计算
+        int levels = 2;
+        for (int size = (leafHashes.length + 1) / 2; size > 1; size = (size + 1) / 2) {
+            levels++;
+        }
+        this.levelOffsets = new int[levels];
+        this.levelSizes = new int[levels];
+        int totalNodes = 0;
+        for (int level = 0, size = leafHashes.length; level < levels; level++, size = (size + 1) / 2) {
+            this.levelOffsets[level] = totalNodes;
+            this.levelSizes[level] = size;
+            totalNodes += size;
+        }
+        this.nodes = new byte[totalNodes * HASH_LENGTH];
+        for (int i = 0; i < leafHashes.length; i++) {
+            if (leafHashes[i] == null || leafHashes[i].length != HASH_LENGTH) {
+                throw new RuntimeException("ERROR:Fail to construct merkle tree ! leafHashes data invalid ! ");
+            }
+            System.arraycopy(leafHashes[i], 0, this.nodes, i * HASH_LENGTH, HASH_LENGTH);
+        }
+        for (int level = 1; level < levels; level++) {
+            this.hashLevel(level);
         }
-        root = parents.get(0);
     }
 
     /**
-     * 构建一个层级节点
+     * 根节点Hash
      *
-     * @param children
      * @return
      */
-    private List<Node> internalLevel(List<Node> children) {
-        List<Node> parents = Lists.newArrayListWithCapacity(children.size() / 2);
-        for (int i = 0; i < children.size() - 1; i += 2) {
-            Node child1 = children.get(i);
-            Node child2 = children.get(i + 1);
-
-            Node parent = constructInternalNode(child1, child2);
-            parents.add(parent);
-        }
-
-        // 内部节点奇数个，只对left节点进行计算
-        if (children.size() % 2 != 0) {
-            Node child = children.get(children.size() - 1);
-            Node parent = constructInternalNode(child, null);
-            parents.add(parent);
-        }
-
-        return parents;
+    public byte[] getRootHash() {
+        int offset = this.levelOffsets[this.levelOffsets.length - 1] * HASH_LENGTH;
+        return Arrays.copyOfRange(this.nodes, offset, offset + HASH_LENGTH);
     }
 
     /**
-     * 底部节点构建
+     * 叶子节点数量
      *
-     * @param hashes
      * @return
      */
-    private List<Node> bottomLevel(byte[][] hashes) {
-        List<Node> parents = Lists.newArrayListWithCapacity(hashes.length / 2);
-
-        for (int i = 0; i < hashes.length - 1; i += 2) {
-            Node leaf1 = constructLeafNode(hashes[i]);
-            Node leaf2 = constructLeafNode(hashes[i + 1]);
-
-            Node parent = constructInternalNode(leaf1, leaf2);
-            parents.add(parent);
-        }
-
-        if (hashes.length % 2 != 0) {
-            Node leaf = constructLeafNode(hashes[hashes.length - 1]);
-            // 奇数个节点的情况，复制最后一个节点
-            Node parent = constructInternalNode(leaf, leaf);
-            parents.add(parent);
-        }
-
-        return parents;
+    public int getLeafCount() {
+        return this.levelSizes[0];
     }
 
     /**
-     * 构建叶子节点
+     * 生成叶子节点的包含证明
      *
-     * @param hash
+     * @param index 叶子节点下标
      * @return
      */
-    private static Node constructLeafNode(byte[] hash) {
-        Node leaf = new Node();
-        leaf.hash = hash;
-        return leaf;
+    public MerkleProof getProof(int index) {
+        if (index < 0 || index >= this.getLeafCount()) {
+            throw new RuntimeException("ERROR:Fail to get merkle proof ! index out of range ! index=" + index);
+        }
+        List<byte[]> siblings = new ArrayList<>(this.levelSizes.length);
+        int position = index;
+        for (int level = 0; level < this.levelSizes.length - 1; level++) {
+            int sibling = position ^ 1;
+            if (sibling < this.levelSizes[level]) {
+                int offset = (this.levelOffsets[level] + sibling) * HASH_LENGTH;
+                siblings.add(Arrays.copyOfRange(this.nodes, offset, offset + HASH_LENGTH));
+            }
+            position /= 2;
+        }
+        return new MerkleProof(index, this.getLeafCount(), siblings.toArray(new byte[0][]));
     }
 
     /**
-     * 构建内部节点
+     * 计算一层的所有节点
      *
-     * @param leftChild
-     * @param rightChild
-     * @return
+     * @param level
      */
-    private Node constructInternalNode(Node leftChild, Node rightChild) {
-        Node parent = new Node();
-        if (rightChild == null) {
-            parent.hash = leftChild.hash;
+    private void hashLevel(int level) {
+        int size = this.levelSizes[level];
+        if (size >= PARALLEL_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(new LevelTask(level, 0, size));
         } else {
-            parent.hash = internalHash(leftChild.hash, rightChild.hash);
+            this.hashNodes(level, 0, size);
         }
-        parent.left = leftChild;
-        parent.right = rightChild;
-        return parent;
     }
 
     /**
-     * 计算内部节点Hash
+     * 计算一层中 [from, to) 区间的节点
      *
-     * @param leftChildHash
-     * @param rightChildHash
-     * @return
+     * @param level
+     * @param from
+     * @param to
      */
-    private byte[] internalHash(byte[] leftChildHash, byte[] rightChildHash) {
-        byte[] mergedBytes = ByteUtil.merge(leftChildHash, rightChildHash);
-        return DigestUtils.sha256(mergedBytes);
+    private void hashNodes(int level, int from, int to) {
+        MessageDigest digest = DIGEST.get();
+        int childOffset = this.levelOffsets[level - 1];
+        int childSize = this.levelSizes[level - 1];
+        try {
+            for (int i = from; i < to; i++) {
+                int left = (childOffset + 2 * i) * HASH_LENGTH;
+                int parent = (this.levelOffsets[level] + i) * HASH_LENGTH;
+                if (2 * i + 1 < childSize) {
+                    digest.update(this.nodes, left, HASH_LENGTH);
+                    digest.update(this.nodes, left + HASH_LENGTH, HASH_LENGTH);
+                    digest.digest(this.nodes, parent, HASH_LENGTH);
+                } else if (level == 1) {
+                    // 叶子节点奇数个，复制最后一个节点
+                    digest.update(this.nodes, left, HASH_LENGTH);
+                    digest.update(this.nodes, left, HASH_LENGTH);
+                    digest.digest(this.nodes, parent, HASH_LENGTH);
+                } else {
+                    // 内部节点奇数个，只对left节点进行计算
+                    System.arraycopy(this.nodes, left, this.nodes, parent, HASH_LENGTH);
+                }
+            }
+        } catch (DigestException e) {
+            throw new RuntimeException("Fail to hash merkle tree node ! ", e);
+        }
     }
 
     /**
-     * Merkle Tree节点
+     * 并行计算一层中的节点，各个任务写入互不重叠的区间
      */
-    @Data
-    public static class Node {
-        private byte[] hash;
-        private Node left;
-        private Node right;
+    private class LevelTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int level;
+        private final int from;
+        private final int to;
+
+        LevelTask(int level, int from, int to) {
+            this.level = level;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= PARALLEL_BATCH_SIZE) {
+                hashNodes(this.level, this.from, this.to);
+                return;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            invokeAll(new LevelTask(this.level, this.from, middle), new LevelTask(this.level, middle, this.to));
+        }
     }
 }
@@ -0,0 +1,26 @@
+package blockchain.transaction;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 一笔转账
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class Payment {
+    /**
+     * 支付钱包地址
+     */
+    private String from;
+    /**
+     * 收款钱包地址
+     */
+    private String to;
+    /**
+     * 交易金额
+     */
+    private int amount;
+}
@@ -0,0 +1,76 @@
+package blockchain.transaction;
+
+import blockchain.utils.CodecUtil;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * 签名数据计算
+ * <p>
+ * 交易的每个交易输入都要对一份交易副本签名：副本中所有交易输入的签名和公钥置空，
+ * 只有当前交易输入的公钥位置换成所引用交易输出的公钥Hash。
+ * 这里只对置空后的交易编码一次，计算每个交易输入时只替换该输入所在的片段，
+ * 并复用前面片段的 SHA-256 中间状态，结果与 Transaction.hash() 完全一致。
+ * 旧版本交易的Hash基于 Kryo 序列化，无法按片段替换，仍逐个构建交易副本计算
+ */
+public class SighashCalculator {
+
+    private SighashCalculator() {
+    }
+
+    /**
+     * 计算每个交易输入的签名数据
+     *
+     * @param tx              交易
+     * @param prevPubKeyHashes 每个交易输入所引用交易输出的公钥Hash
+     * @return
+     */
+    public static byte[][] sighashes(Transaction tx, byte[][] prevPubKeyHashes) {
+        if (tx.getVersion() == Transaction.LEGACY_VERSION) {
+            return legacySighashes(tx, prevPubKeyHashes);
+        }
+        Transaction txCopy = tx.trimmedCopy();
+        txCopy.setTxId(new byte[]{});
+        byte[] encoded = CodecUtil.encodeTransaction(txCopy);
+        int[] offsets = CodecUtil.inputOffsets(txCopy);
+
+        TXInput[] txInputs = txCopy.getInputs();
+        byte[][] sighashes = new byte[txInputs.length][];
+        MessageDigest prefixDigest = DigestUtils.getSha256Digest();
+        prefixDigest.update(encoded, 0, offsets[0]);
+        try {
+            for (int i = 0; i < txInputs.length; i++) {
+                TXInput slotInput = new TXInput(txInputs[i].getTxId(), txInputs[i].getTxOutputIndex(), null, prevPubKeyHashes[i]);
+                ByteBuffer slot = ByteBuffer.allocate(CodecUtil.txInputSize(slotInput));
+                CodecUtil.encodeTXInput(slotInput, slot);
+
+                MessageDigest digest = (MessageDigest) prefixDigest.clone();
+                digest.update(slot.array());
+                digest.update(encoded, offsets[i + 1], encoded.length - offsets[i + 1]);
+                sighashes[i] = digest.digest();
+
+                prefixDigest.update(encoded, offsets[i], offsets[i + 1] - offsets[i]);
+            }
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException("Fail to calculate sighash ! ", e);
+        }
+        return sighashes;
+    }
+
+    /**
+     * 旧版本交易逐个构建交易副本计算签名数据
+     */
+    private static byte[][] legacySighashes(Transaction tx, byte[][] prevPubKeyHashes) {
+        Transaction txCopy = tx.trimmedCopy();
+        byte[][] sighashes = new byte[txCopy.getInputs().length][];
+        for (int i = 0; i < txCopy.getInputs().length; i++) {
+            TXInput txInputCopy = txCopy.getInputs()[i];
+            txInputCopy.setPubKey(prevPubKeyHashes[i]);
+            sighashes[i] = txCopy.hash();
+            txInputCopy.setPubKey(null);
+        }
+        return sighashes;
+    }
+}
@@ -0,0 +1,122 @@
+package blockchain.transaction;
+
+import blockchain.utils.ByteUtil;
+import blockchain.utils.LruMap;
+import lombok.Getter;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * 签名验证缓存
+ * <p>
+ * 只缓存验证通过的签名，key 为 交易ID + 交易输入下标，value 为公钥、签名数据和签名三者的内容Hash。
+ * 同一交易输入的内容发生变化时内容Hash不一致，视为未命中并重新验证
+ */
+public class SignatureCache {
+    /**
+     * 缓存的最大记录数，可通过 -Dharmony.sigcache.entries 配置
+     */
+    private static final int MAX_ENTRIES = Integer.parseInt(System.getProperty("harmony.sigcache.entries", "100000"));
+
+    private volatile static SignatureCache instance;
+
+    public static SignatureCache getInstance() {
+        if (instance == null) {
+            synchronized (SignatureCache.class) {
+                if (instance == null) {
+                    instance = new SignatureCache();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 按访问顺序排列，超出容量时淘汰最久未使用的记录
+     */
+    private final LruMap<String, byte[]> entries = new LruMap<>(1024, MAX_ENTRIES);
+
+    @Getter
+    private long hitCount;
+    @Getter
+    private long missCount;
+
+    private SignatureCache() {
+    }
+
+    /**
+     * 签名是否已验证通过
+     *
+     * @param check
+     * @return
+     */
+    public boolean contains(SignatureCheck check) {
+        if (check.getTxId() == null) {
+            return false;
+        }
+        String key = key(check);
+        byte[] contentHash = contentHash(check);
+        synchronized (this) {
+            byte[] cached = entries.get(key);
+            if (cached != null && Arrays.equals(cached, contentHash)) {
+                hitCount++;
+                return true;
+            }
+            missCount++;
+            return false;
+        }
+    }
+
+    /**
+     * 记录验证通过的签名
+     *
+     * @param check
+     */
+    public void add(SignatureCheck check) {
+        if (check.getTxId() == null) {
+            return;
+        }
+        String key = key(check);
+        byte[] contentHash = contentHash(check);
+        synchronized (this) {
+            entries.put(key, contentHash);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * 缓存命中率
+     *
+     * @return
+     */
+    public synchronized double getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    private static String key(SignatureCheck check) {
+        return Hex.encodeHexString(check.getTxId()) + "_" + check.getInputIndex();
+    }
+
+    private static byte[] contentHash(SignatureCheck check) {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        for (byte[] bytes : new byte[][]{check.getPubKey(), check.getSighash(), check.getSignature()}) {
+            // 长度前缀，避免不同字段拼接后产生相同的数据
+            digest.update(ByteUtil.intToByte(bytes == null ? -1 : bytes.length));
+            if (bytes != null) {
+                digest.update(bytes);
+            }
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,34 @@
+package blockchain.transaction;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 一次签名验证所需的数据：所属的交易输入、公钥、签名数据（交易副本的Hash）以及签名
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class SignatureCheck {
+    /**
+     * 交易ID
+     */
+    private byte[] txId;
+    /**
+     * 交易输入下标
+     */
+    private int inputIndex;
+    /**
+     * 公钥（未压缩格式，65 字节）
+     */
+    private byte[] pubKey;
+    /**
+     * 被签名的数据
+     */
+    private byte[] sighash;
+    /**
+     * 签名
+     */
+    private byte[] signature;
+}
@@ -0,0 +1,114 @@
+package blockchain.transaction;
+
+import blockchain.utils.CryptoContext;
+import blockchain.utils.LogUtil;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 签名批量验证
+ * <p>
+ * 在 fork/join 线程池中并行验证一批签名，任一签名无效时尽快结束，
+ * 线程数由 -Dharmony.verify.threads 配置，默认为 CPU 核数
+ */
+public class SignatureVerifier {
+    private static final int VERIFY_THREADS = Math.max(1, Integer.parseInt(System.getProperty("harmony.verify.threads",
+            String.valueOf(Runtime.getRuntime().availableProcessors()))));
+    /**
+     * 签名数量少于该值时直接在当前线程中验证
+     */
+    private static final int PARALLEL_THRESHOLD = 2;
+    /**
+     * 每个并行任务至少验证的签名数
+     */
+    private static final int BATCH_SIZE = 8;
+    private static final ForkJoinPool VERIFY_POOL = new ForkJoinPool(VERIFY_THREADS);
+
+    private SignatureVerifier() {
+    }
+
+    /**
+     * 验证单个签名，公钥或签名格式错误时视为无效
+     * <p>
+     * 先查询签名验证缓存，验证通过的签名加入缓存
+     *
+     * @param check
+     * @return
+     */
+    public static boolean verify(SignatureCheck check) {
+        if (SignatureCache.getInstance().contains(check)) {
+            return true;
+        }
+        boolean valid = verifySignature(check);
+        if (valid) {
+            SignatureCache.getInstance().add(check);
+        }
+        return valid;
+    }
+
+    private static boolean verifySignature(SignatureCheck check) {
+        try {
+            return CryptoContext.get().verify(check.getPubKey(), check.getSighash(), check.getSignature());
+        } catch (Exception e) {
+            LogUtil.d("Fail to verify signature ! " + e);
+            return false;
+        }
+    }
+
+    /**
+     * 并行验证一批签名
+     *
+     * @param checks
+     * @return 全部有效时返回 true
+     */
+    public static boolean verifyAll(List<SignatureCheck> checks) {
+        if (checks.size() < PARALLEL_THRESHOLD || VERIFY_THREADS == 1) {
+            for (SignatureCheck check : checks) {
+                if (!verify(check)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        AtomicBoolean failed = new AtomicBoolean();
+        VERIFY_POOL.invoke(new VerifyTask(checks, 0, checks.size(), failed));
+        return !failed.get();
+    }
+
+    /**
+     * 并行验证 [from, to) 区间的签名，每次验证前检查是否已有签名无效，发现无效签名后所有任务尽快结束
+     */
+    private static class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<SignatureCheck> checks;
+        private final int from;
+        private final int to;
+        private final AtomicBoolean failed;
+
+        VerifyTask(List<SignatureCheck> checks, int from, int to, AtomicBoolean failed) {
+            this.checks = checks;
+            this.from = from;
+            this.to = to;
+            this.failed = failed;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= BATCH_SIZE) {
+                for (int i = this.from; i < this.to && !this.failed.get(); i++) {
+                    if (!verify(this.checks.get(i))) {
+                        this.failed.set(true);
+                    }
+                }
+                return;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            invokeAll(new VerifyTask(this.checks, this.from, middle, this.failed),
+                    new VerifyTask(this.checks, middle, this.to, this.failed));
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package blockchain.transaction;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 交易输出的位置，由交易ID和交易输出下标唯一确定
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class TXOutpoint {
+    /**
+     * 交易ID
+     */
+    private String txId;
+    /**
+     * 交易输出下标
+     */
+    private int index;
+}
@@ -2,40 +2,41 @@ package blockchain.transaction;
 
 import blockchain.block.BlockChain;
 import blockchain.utils.BtcAddressUtil;
+import blockchain.utils.CodecUtil;
+import blockchain.utils.CryptoContext;
 import blockchain.utils.SerializeUtil;
 import blockchain.wallet.Wallet;
 import blockchain.wallet.WalletUtil;
-import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.RandomUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.bouncycastle.jcajce.provider.asymmetric.ec.BCECPrivateKey;
-import org.bouncycastle.jce.ECNamedCurveTable;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
-import org.bouncycastle.jce.spec.ECParameterSpec;
-import org.bouncycastle.jce.spec.ECPublicKeySpec;
-import org.bouncycastle.math.ec.ECPoint;
 
-import java.math.BigInteger;
-import java.security.KeyFactory;
-import java.security.PublicKey;
-import java.security.Security;
-import java.security.Signature;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
  * 交易
  */
 @Data
-@AllArgsConstructor
 @NoArgsConstructor
 public class Transaction {
     private static final int SUBSIDY = 10;//区块产出的奖励
+    /**
+     * 旧版本交易，交易Hash基于 Kryo 序列化
+     */
+    public static final int LEGACY_VERSION = 0;
+    /**
+     * 当前交易版本，交易Hash基于规范二进制编码
+     */
+    public static final int VERSION = 1;
     /**
      * 交易的Hash
      */
@@ -48,6 +49,19 @@ public class Transaction {
      * 交易输出
      */
     private TXOutput[] outputs;
+    /**
+     * 交易版本
+     * <p>
+     * 不参与 Kryo 序列化，从旧版本 Kryo 数据中读出的交易为 LEGACY_VERSION，新建的交易为 VERSION
+     */
+    private transient int version;
+
+    public Transaction(byte[] txId, TXInput[] inputs, TXOutput[] outputs) {
+        this.txId = txId;
+        this.inputs = inputs;
+        this.outputs = outputs;
+        this.version = VERSION;
+    }
 
     /**
      * 计算交易信息的Hash值
@@ -55,18 +69,30 @@ public class Transaction {
      * @return
      */
     public byte[] hash() {
-        // 使用序列化的方式对Transaction对象进行深度复制
-        byte[] serializeBytes = SerializeUtil.serialize(this);
-        Transaction copyTx = (Transaction) SerializeUtil.deserialize(serializeBytes);
-        copyTx.setTxId(new byte[]{});
-        return DigestUtils.sha256(SerializeUtil.serialize(copyTx));
+        // 交易ID置空后序列化，浅复制即可，不会修改原交易
+        Transaction copyTx = new Transaction(new byte[]{}, this.getInputs(), this.getOutputs());
+        copyTx.setVersion(this.getVersion());
+        return DigestUtils.sha256(this.serialize(copyTx));
     }
 
     /**
      * 设置交易ID
      */
     private void setTxId() {
-        this.setTxId(DigestUtils.sha256(SerializeUtil.serialize(this)));
+        this.setTxId(DigestUtils.sha256(this.serialize(this)));
+    }
+
+    /**
+     * 用于计算Hash的交易数据，旧版本交易保持原有的 Kryo 序列化结果
+     *
+     * @param tx
+     * @return
+     */
+    private byte[] serialize(Transaction tx) {
+        if (this.getVersion() == LEGACY_VERSION) {
+            return SerializeUtil.serializeWithClassNames(tx);
+        }
+        return CodecUtil.encodeTransaction(tx);
     }
 
     /**
@@ -78,7 +104,8 @@ public class Transaction {
      */
     public static Transaction newCoinbaseTX(String to, String data) {
         if (StringUtils.isBlank(data)) {
-            data = String.format("Reward to '%s'", to);
+            // 加入随机数，避免同一地址的多笔 coinbase 交易ID相同，导致 UTXO 相互覆盖
+            data = String.format("Reward to '%s' %d", to, RandomUtils.nextLong(0, Long.MAX_VALUE));
         }
         // 创建交易输入
         TXInput txInput = new TXInput(new byte[]{}, -1, null, data.getBytes());
@@ -169,28 +196,13 @@ public class Transaction {
             }
         }
 
-        // 创建用于签名的交易信息的副本
-        Transaction txCopy = this.trimmedCopy();
-
-        Security.addProvider(new BouncyCastleProvider());
-        Signature ecdsaSign = Signature.getInstance("SHA256withECDSA", BouncyCastleProvider.PROVIDER_NAME);
-        ecdsaSign.initSign(privateKey);
-
-        for (int i = 0; i < txCopy.getInputs().length; i++) {
-            TXInput txInputCopy = txCopy.getInputs()[i];
-            // 获取交易输入TxID对应的交易数据
-            Transaction prevTx = prevTxMap.get(Hex.encodeHexString(txInputCopy.getTxId()));
-            // 获取交易输入所对应的上一笔交易中的交易输出
-            TXOutput prevTxOutput = prevTx.getOutputs()[txInputCopy.getTxOutputIndex()];
-            txInputCopy.setPubKey(prevTxOutput.getPubKeyHash());
-            txInputCopy.setSignature(null);
-            // 得到要签名的数据，即交易ID
-            txCopy.setTxId(txCopy.hash());
-            txInputCopy.setPubKey(null);
+        // 得到每个交易输入要签名的数据
+        byte[][] sighashes = SighashCalculator.sighashes(this, this.prevPubKeyHashes(prevTxMap));
 
+        CryptoContext cryptoContext = CryptoContext.get();
+        for (int i = 0; i < this.getInputs().length; i++) {
             // 对整个交易信息仅进行签名，即对交易ID进行签名
-            ecdsaSign.update(txCopy.getTxId());
-            byte[] signature = ecdsaSign.sign();
+            byte[] signature = cryptoContext.sign(privateKey, sighashes[i]);
 
             // 将整个交易数据的签名赋值给交易输入，因为交易输入需要包含整个交易信息的签名
             // 注意是将得到的签名赋值给原交易信息中的交易输入
@@ -198,6 +210,24 @@ public class Transaction {
         }
     }
 
+    /**
+     * 获取每个交易输入所引用的交易输出的公钥Hash
+     *
+     * @param prevTxMap 前面多笔交易集合
+     * @return
+     */
+    private byte[][] prevPubKeyHashes(Map<String, Transaction> prevTxMap) {
+        byte[][] prevPubKeyHashes = new byte[this.getInputs().length][];
+        for (int i = 0; i < this.getInputs().length; i++) {
+            TXInput txInput = this.getInputs()[i];
+            // 获取交易输入TxID对应的交易数据
+            Transaction prevTx = prevTxMap.get(Hex.encodeHexString(txInput.getTxId()));
+            // 获取交易输入所对应的上一笔交易中的交易输出
+            prevPubKeyHashes[i] = prevTx.getOutputs()[txInput.getTxOutputIndex()].getPubKeyHash();
+        }
+        return prevPubKeyHashes;
+    }
+
     /**
      * 创建用于签名的交易数据副本
      *
@@ -216,7 +246,9 @@ public class Transaction {
             tmpTXOutputs[i] = new TXOutput(txOutput.getValue(), txOutput.getPubKeyHash());
         }
 
-        return new Transaction(this.getTxId(), tmpTXInputs, tmpTXOutputs);
+        Transaction txCopy = new Transaction(this.getTxId(), tmpTXInputs, tmpTXOutputs);
+        txCopy.setVersion(this.getVersion());
+        return txCopy;
     }
 
     /**
@@ -226,9 +258,24 @@ public class Transaction {
      * @return
      */
     public boolean verify(Map<String, Transaction> prevTxMap) throws Exception {
+        for (SignatureCheck check : this.getSignatureChecks(prevTxMap)) {
+            if (!SignatureVerifier.verify(check)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 获取每个交易输入的签名验证数据，用于批量验证
+     *
+     * @param prevTxMap 前面多笔交易集合
+     * @return coinbase 交易返回空列表
+     */
+    public List<SignatureCheck> getSignatureChecks(Map<String, Transaction> prevTxMap) throws Exception {
         // coinbase 交易信息不需要签名，也就无需验证
         if (this.isCoinbase()) {
-            return true;
+            return Collections.emptyList();
         }
 
         // 再次验证一下交易信息中的交易输入是否正确，也就是能否查找对应的交易数据
@@ -238,42 +285,15 @@ public class Transaction {
             }
         }
 
-        // 创建用于签名验证的交易信息的副本
-        Transaction txCopy = this.trimmedCopy();
-
-        Security.addProvider(new BouncyCastleProvider());
-        ECParameterSpec ecParameters = ECNamedCurveTable.getParameterSpec("secp256k1");
-        KeyFactory keyFactory = KeyFactory.getInstance("ECDSA", BouncyCastleProvider.PROVIDER_NAME);
-        Signature ecdsaVerify = Signature.getInstance("SHA256withECDSA", BouncyCastleProvider.PROVIDER_NAME);
+        // 得到每个交易输入签名的数据
+        byte[][] sighashes = SighashCalculator.sighashes(this, this.prevPubKeyHashes(prevTxMap));
 
+        List<SignatureCheck> checks = new ArrayList<>(this.getInputs().length);
         for (int i = 0; i < this.getInputs().length; i++) {
             TXInput txInput = this.getInputs()[i];
-            // 获取交易输入TxID对应的交易数据
-            Transaction prevTx = prevTxMap.get(Hex.encodeHexString(txInput.getTxId()));
-            // 获取交易输入所对应的上一笔交易中的交易输出
-            TXOutput prevTxOutput = prevTx.getOutputs()[txInput.getTxOutputIndex()];
-
-            TXInput txInputCopy = txCopy.getInputs()[i];
-            txInputCopy.setSignature(null);
-            txInputCopy.setPubKey(prevTxOutput.getPubKeyHash());
-            // 得到要签名的数据，即交易ID
-            txCopy.setTxId(txCopy.hash());
-            txInputCopy.setPubKey(null);
-
-            // 使用椭圆曲线 x,y 点去生成公钥Key
-            BigInteger x = new BigInteger(1, Arrays.copyOfRange(txInput.getPubKey(), 1, 33));
-            BigInteger y = new BigInteger(1, Arrays.copyOfRange(txInput.getPubKey(), 33, 65));
-            ECPoint ecPoint = ecParameters.getCurve().createPoint(x, y);
-
-            ECPublicKeySpec keySpec = new ECPublicKeySpec(ecPoint, ecParameters);
-            PublicKey publicKey = keyFactory.generatePublic(keySpec);
-            ecdsaVerify.initVerify(publicKey);
-            ecdsaVerify.update(txCopy.getTxId());
-            if (!ecdsaVerify.verify(txInput.getSignature())) {
-                return false;
-            }
+            checks.add(new SignatureCheck(this.getTxId(), i, txInput.getPubKey(), sighashes[i], txInput.getSignature()));
         }
-        return true;
+        return checks;
     }
 
 }
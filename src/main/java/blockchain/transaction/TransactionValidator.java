@@ -0,0 +1,87 @@
+package blockchain.transaction;
+
+import blockchain.block.BlockChain;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.codec.binary.Hex;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 未确认交易的验证规则，交易池接收交易与挖矿服务创建区块模板时共用
+ * <p>
+ * 交易输入引用的交易输出必须来自给定的未确认交易，或者是 UTXO 池中未花费的交易输出，且没有被其他未确认交易花费；
+ * 公钥必须与交易输出匹配，交易输出的金额必须为正数且总和不超过交易输入，所有签名必须有效
+ */
+public class TransactionValidator {
+
+    private TransactionValidator() {
+    }
+
+    /**
+     * 验证交易
+     *
+     * @param tx             已签名的交易
+     * @param pendingTxs     交易ID -> 可被引用的未确认交易
+     * @param spentOutpoints 已被未确认交易花费的交易输出位置 -> 花费它的交易ID
+     * @param blockchain     查询已确认的交易
+     * @throws Exception 交易无效
+     */
+    public static void validate(Transaction tx, Map<String, Transaction> pendingTxs,
+                                Map<TXOutpoint, String> spentOutpoints, BlockChain blockchain) throws Exception {
+        String txId = Hex.encodeHexString(tx.getTxId());
+        if (tx.isCoinbase()) {
+            throw new Exception("ERROR: Unexpected coinbase transaction ! txId=" + txId);
+        }
+
+        Set<TXOutpoint> outpoints = Sets.newHashSet();
+        Map<String, Transaction> prevTxMap = Maps.newHashMap();
+        long inputValue = 0;
+        for (TXInput txInput : tx.getInputs()) {
+            TXOutpoint outpoint = new TXOutpoint(Hex.encodeHexString(txInput.getTxId()), txInput.getTxOutputIndex());
+            if (!outpoints.add(outpoint)) {
+                throw new Exception("ERROR: Duplicate transaction input ! txId=" + txId);
+            }
+            String spender = spentOutpoints.get(outpoint);
+            if (spender != null) {
+                throw new Exception("ERROR: Double spend ! outpoint " + outpoint + " already spent by " + spender);
+            }
+            Transaction prevTx = pendingTxs.get(outpoint.getTxId());
+            TXOutput prevOutput;
+            if (prevTx != null) {
+                // 花费未确认交易的交易输出
+                if (outpoint.getIndex() < 0 || outpoint.getIndex() >= prevTx.getOutputs().length) {
+                    throw new Exception("ERROR: Transaction output not found ! outpoint " + outpoint);
+                }
+                prevOutput = prevTx.getOutputs()[outpoint.getIndex()];
+            } else {
+                prevOutput = UTXOCache.getInstance().get(outpoint);
+                if (prevOutput == null) {
+                    throw new Exception("ERROR: Transaction output is not unspent ! outpoint " + outpoint);
+                }
+                prevTx = blockchain.findTransaction(txInput.getTxId());
+            }
+            if (!txInput.usesKey(prevOutput.getPubKeyHash())) {
+                throw new Exception("ERROR: Public key does not match transaction output ! outpoint " + outpoint);
+            }
+            inputValue += prevOutput.getValue();
+            prevTxMap.put(outpoint.getTxId(), prevTx);
+        }
+
+        long outputValue = 0;
+        for (TXOutput txOutput : tx.getOutputs()) {
+            if (txOutput.getValue() <= 0) {
+                throw new Exception("ERROR: Invalid transaction output value ! txId=" + txId);
+            }
+            outputValue += txOutput.getValue();
+        }
+        if (outputValue > inputValue) {
+            throw new Exception("ERROR: Transaction outputs exceed inputs ! txId=" + txId);
+        }
+
+        if (!SignatureVerifier.verifyAll(tx.getSignatureChecks(prevTxMap))) {
+            throw new Exception("ERROR: Invalid transaction signature ! txId=" + txId);
+        }
+    }
+}
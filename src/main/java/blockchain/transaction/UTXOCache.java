@@ -0,0 +1,338 @@
+package blockchain.transaction;
+
+import blockchain.utils.LogUtil;
+import blockchain.utils.RocksDBUtil;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import lombok.Getter;
+import org.apache.commons.codec.binary.Hex;
+import org.rocksdb.WriteBatch;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * UTXO 写回缓存
+ * <p>
+ * 热点UTXO保存在内存中，新增和花费先只修改缓存，超出内存预算或程序退出时再批量写入DB。
+ * 两次写入之间产生并被花费掉的交易输出不会写入DB。
+ * 每次写入DB时同时记录缓存已同步到的区块Hash，程序崩溃后可以从该区块开始重放。
+ * 按地址查询时在DB的地址索引上叠加未写入DB的变化，只读查询不会触发写入DB。
+ */
+public class UTXOCache {
+    /**
+     * 缓存的内存预算（字节），可通过 -Dharmony.utxo.cache.bytes 配置
+     */
+    private static final long CACHE_BUDGET_BYTES = Long.parseLong(System.getProperty("harmony.utxo.cache.bytes", String.valueOf(32L << 20)));
+    /**
+     * 每条缓存记录的估算内存占用：交易ID字符串、公钥Hash以及对象和 Map 节点的开销
+     */
+    private static final long ENTRY_BYTES = 320;
+
+    private volatile static UTXOCache instance;
+
+    public static UTXOCache getInstance() {
+        if (instance == null) {
+            synchronized (UTXOCache.class) {
+                if (instance == null) {
+                    instance = new UTXOCache();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 按访问顺序排列，最久未使用的在最前面
+     */
+    private final LinkedHashMap<TXOutpoint, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    /**
+     * 未写入DB的记录按地址（公钥Hash的十六进制）分组，用于按地址查询时叠加到DB的地址索引上
+     */
+    private final Map<String, Set<TXOutpoint>> dirtyOutpointsByAddress = Maps.newHashMap();
+    /**
+     * 缓存已应用到的区块Hash，为 null 时表示没有需要写入DB的变化
+     */
+    private String bestBlockHash;
+    /**
+     * 未写入DB的记录数
+     */
+    private int dirtyCount;
+
+    @Getter
+    private long hitCount;
+    @Getter
+    private long missCount;
+    @Getter
+    private long flushCount;
+    /**
+     * 累计写入DB耗时（毫秒）
+     */
+    @Getter
+    private double flushMillis;
+
+    private UTXOCache() {
+    }
+
+    /**
+     * 查询UTXO
+     *
+     * @param outpoint 交易输出位置
+     * @return 不存在或已被花费时返回 null
+     */
+    public synchronized TXOutput get(TXOutpoint outpoint) {
+        Entry entry = this.fetch(outpoint);
+        return entry == null ? null : entry.txOutput;
+    }
+
+    /**
+     * 新增UTXO
+     *
+     * @param outpoint 交易输出位置
+     * @param txOutput 交易输出
+     */
+    public synchronized void add(TXOutpoint outpoint, TXOutput txOutput) {
+        Entry entry = entries.get(outpoint);
+        if (entry == null) {
+            // 不在缓存中时，按DB中没有该记录处理
+            entries.put(outpoint, new Entry(txOutput, true, true));
+            dirtyCount++;
+            this.markDirty(outpoint, txOutput);
+            return;
+        }
+        if (!entry.dirty) {
+            dirtyCount++;
+        }
+        entry.txOutput = txOutput;
+        entry.spent = false;
+        entry.dirty = true;
+        this.markDirty(outpoint, txOutput);
+    }
+
+    /**
+     * 花费UTXO
+     *
+     * @param outpoint 交易输出位置
+     * @return 被花费的交易输出，不存在时返回 null
+     */
+    public synchronized TXOutput spend(TXOutpoint outpoint) {
+        Entry entry = this.fetch(outpoint);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.fresh) {
+            // 还没有写入过DB，直接丢弃
+            entries.remove(outpoint);
+            dirtyCount--;
+            Set<TXOutpoint> outpoints = dirtyOutpointsByAddress.get(addressKey(entry.txOutput));
+            if (outpoints != null) {
+                outpoints.remove(outpoint);
+            }
+            return entry.txOutput;
+        }
+        if (!entry.dirty) {
+            dirtyCount++;
+        }
+        entry.spent = true;
+        entry.dirty = true;
+        this.markDirty(outpoint, entry.txOutput);
+        return entry.txOutput;
+    }
+
+    /**
+     * 遍历钱包地址对应的UTXO
+     * <p>
+     * 遍历DB的地址索引时跳过缓存中有变化的记录，再遍历缓存中该地址新增且未花费的记录，结果与先写入DB再遍历一致
+     *
+     * @param pubKeyHash 公钥Hash的十六进制
+     * @param visitor    返回 false 时停止遍历
+     */
+    public synchronized void forEachAddressUTXOs(String pubKeyHash, RocksDBUtil.UTXOVisitor visitor) {
+        Set<TXOutpoint> dirtyOutpoints = dirtyOutpointsByAddress.get(pubKeyHash);
+        if (dirtyOutpoints == null || dirtyOutpoints.isEmpty()) {
+            RocksDBUtil.getInstance().forEachAddressUTXOs(pubKeyHash, visitor);
+            return;
+        }
+        boolean[] stopped = {false};
+        RocksDBUtil.getInstance().forEachAddressUTXOs(pubKeyHash, (txId, index, txOutput) -> {
+            if (dirtyOutpoints.contains(new TXOutpoint(txId, index))) {
+                return true;
+            }
+            stopped[0] = !visitor.visit(txId, index, txOutput);
+            return !stopped[0];
+        });
+        if (stopped[0]) {
+            return;
+        }
+        for (TXOutpoint outpoint : dirtyOutpoints) {
+            // 只读查询，不改变访问顺序
+            Entry entry = entries.get(outpoint);
+            if (entry != null && !entry.spent && !visitor.visit(outpoint.getTxId(), outpoint.getIndex(), entry.txOutput)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 记录缓存已应用到的区块，超出内存预算时写入DB并淘汰最久未使用的记录
+     *
+     * @param blockHash 区块Hash
+     */
+    public synchronized void blockApplied(String blockHash) {
+        this.bestBlockHash = blockHash;
+        if (entries.size() * ENTRY_BYTES > CACHE_BUDGET_BYTES) {
+            this.flush();
+            this.evict(CACHE_BUDGET_BYTES / 2);
+        }
+    }
+
+    /**
+     * 将所有变化写入DB
+     */
+    public synchronized void flush() {
+        if (bestBlockHash == null) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        int flushed = dirtyCount;
+        try (WriteBatch batch = new WriteBatch()) {
+            for (Iterator<Map.Entry<TXOutpoint, Entry>> iterator = entries.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<TXOutpoint, Entry> mapEntry = iterator.next();
+                Entry entry = mapEntry.getValue();
+                if (!entry.dirty) {
+                    continue;
+                }
+                String txId = mapEntry.getKey().getTxId();
+                int index = mapEntry.getKey().getIndex();
+                String pubKeyHash = Hex.encodeHexString(entry.txOutput.getPubKeyHash());
+                if (entry.spent) {
+                    RocksDBUtil.getInstance().deleteUTXO(batch, txId, index);
+                    RocksDBUtil.getInstance().deleteAddressUTXO(batch, pubKeyHash, txId, index);
+                    iterator.remove();
+                } else {
+                    RocksDBUtil.getInstance().putUTXO(batch, txId, index, entry.txOutput);
+                    RocksDBUtil.getInstance().putAddressUTXO(batch, pubKeyHash, txId, index, entry.txOutput);
+                    entry.dirty = false;
+                    entry.fresh = false;
+                }
+            }
+            RocksDBUtil.getInstance().putUTXOTip(batch, bestBlockHash);
+            RocksDBUtil.getInstance().writeBatch(batch);
+        }
+        dirtyCount = 0;
+        dirtyOutpointsByAddress.clear();
+        bestBlockHash = null;
+        double elapsedMillis = (System.nanoTime() - startTime) / 1000000d;
+        flushCount++;
+        flushMillis += elapsedMillis;
+        LogUtil.d("Flush UTXO cache elapsed time(ms):" + elapsedMillis + " entries:" + flushed
+                + " hit rate:" + this.getHitRate());
+    }
+
+    /**
+     * 丢弃所有缓存，用于直接改写DB中的 chainstate 之前
+     */
+    public synchronized void clear() {
+        entries.clear();
+        dirtyCount = 0;
+        dirtyOutpointsByAddress.clear();
+        bestBlockHash = null;
+    }
+
+    /**
+     * 缓存命中率
+     *
+     * @return
+     */
+    public synchronized double getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * 查询缓存记录，不在缓存中时从DB读取
+     *
+     * @param outpoint
+     * @return 不存在或已被花费时返回 null
+     */
+    private Entry fetch(TXOutpoint outpoint) {
+        Entry entry = entries.get(outpoint);
+        if (entry != null) {
+            hitCount++;
+            return entry.spent ? null : entry;
+        }
+        missCount++;
+        TXOutput txOutput = RocksDBUtil.getInstance().getUTXO(outpoint.getTxId(), outpoint.getIndex());
+        if (txOutput == null) {
+            return null;
+        }
+        // 只读查询也会加入缓存，不等到下一个区块，在加入之前淘汰，避免淘汰掉正要返回的记录
+        if ((entries.size() - dirtyCount + 1) * ENTRY_BYTES > CACHE_BUDGET_BYTES) {
+            this.evict(CACHE_BUDGET_BYTES / 2);
+        }
+        entry = new Entry(txOutput, false, false);
+        entries.put(outpoint, entry);
+        return entry;
+    }
+
+    /**
+     * 记录有变化的交易输出位置
+     *
+     * @param outpoint
+     * @param txOutput
+     */
+    private void markDirty(TXOutpoint outpoint, TXOutput txOutput) {
+        String address = addressKey(txOutput);
+        Set<TXOutpoint> outpoints = dirtyOutpointsByAddress.get(address);
+        if (outpoints == null) {
+            outpoints = Sets.newLinkedHashSet();
+            dirtyOutpointsByAddress.put(address, outpoints);
+        }
+        outpoints.add(outpoint);
+    }
+
+    private static String addressKey(TXOutput txOutput) {
+        return Hex.encodeHexString(txOutput.getPubKeyHash());
+    }
+
+    /**
+     * 按最久未使用的顺序淘汰已写入DB的记录，未写入DB的记录不会被淘汰
+     *
+     * @param targetBytes 淘汰后已写入DB的记录的目标内存占用
+     */
+    private void evict(long targetBytes) {
+        for (Iterator<Entry> iterator = entries.values().iterator();
+             iterator.hasNext() && (entries.size() - dirtyCount) * ENTRY_BYTES > targetBytes; ) {
+            if (!iterator.next().dirty) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 缓存记录
+     */
+    private static class Entry {
+        private TXOutput txOutput;
+        /**
+         * 与DB中的数据不一致
+         */
+        private boolean dirty;
+        /**
+         * DB中没有该记录，被花费时可以直接丢弃
+         */
+        private boolean fresh;
+        /**
+         * 已被花费
+         */
+        private boolean spent;
+
+        private Entry(TXOutput txOutput, boolean dirty, boolean fresh) {
+            this.txOutput = txOutput;
+            this.dirty = dirty;
+            this.fresh = fresh;
+        }
+    }
+}
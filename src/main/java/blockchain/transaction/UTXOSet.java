@@ -2,39 +2,188 @@ package blockchain.transaction;
 
 import blockchain.block.Block;
 import blockchain.block.BlockChain;
+import blockchain.utils.ByteUtil;
 import blockchain.utils.LogUtil;
 import blockchain.utils.RocksDBUtil;
-import blockchain.utils.SerializeUtil;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import lombok.AllArgsConstructor;
 import lombok.NoArgsConstructor;
-import lombok.Synchronized;
-import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang3.ArrayUtils;
+import org.rocksdb.WriteBatch;
 
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
  * UTXO池
+ * <p>
+ * 每个未花费的交易输出以 (交易ID, 交易输出下标) 为 key 单独存储，花费时只删除对应的一条记录，
+ * 读写经过 UTXOCache，按地址查询时叠加缓存中未写入DB的变化，不需要先写入DB。
+ * UTXOSet 每次使用时新建，多步修改在 UTXOCache 单例的锁内进行，例如一个区块的所有变化对查询一次性可见
  */
 @NoArgsConstructor
 @AllArgsConstructor
 public class UTXOSet {
+    /**
+     * 重放区块时每隔多少个区块打印一次进度
+     */
+    private static final int REPLAY_PROGRESS_INTERVAL = 1000;
+
     private BlockChain blockchain;
 
     /**
      * 重建 UTXO 池索引
+     * <p>
+     * 清空 chainstate 后从创世区块开始正序重放整条链，UTXO的新增和花费经过 UTXOCache，
+     * 超出内存预算时分批写入DB，内存占用与链的长度无关。
+     * 每次写入DB都会记录已同步到的区块，中途崩溃后加载区块链时会从该区块继续
      */
-    @Synchronized
     public void reIndex() {
-        LogUtil.d("Start to reIndex UTXO set !");
-        RocksDBUtil.getInstance().cleanChainStateBucket();
-        Map<String, TXOutput[]> allUTXOs = blockchain.findAllUTXOs();
-        for (Map.Entry<String, TXOutput[]> entry : allUTXOs.entrySet()) {
-            RocksDBUtil.getInstance().putUTXOs(entry.getKey(), entry.getValue());
+        synchronized (UTXOCache.getInstance()) {
+            LogUtil.d("Start to reIndex UTXO set !");
+            UTXOCache.getInstance().clear();
+            try (WriteBatch batch = new WriteBatch()) {
+                RocksDBUtil.getInstance().putUTXOTip(batch, ByteUtil.ZERO_HASH);
+                RocksDBUtil.getInstance().putAddressIndexBuilt(batch);
+                RocksDBUtil.getInstance().writeBatch(batch);
+            }
+            this.replay();
+            LogUtil.d("ReIndex UTXO set finished ! ");
+        }
+    }
+
+    /**
+     * 依据现有的 chainstate 建立地址索引，用于没有地址索引的旧版本数据库
+     */
+    public void reIndexAddresses() {
+        synchronized (UTXOCache.getInstance()) {
+            LogUtil.d("Start to reIndex UTXO addresses !");
+            try (WriteBatch batch = new WriteBatch()) {
+                RocksDBUtil.getInstance().forEachUTXOs((txId, outIndex, txOutput) -> {
+                    RocksDBUtil.getInstance().putAddressUTXO(batch,
+                            Hex.encodeHexString(txOutput.getPubKeyHash()), txId, outIndex, txOutput);
+                    return true;
+                });
+                RocksDBUtil.getInstance().putAddressIndexBuilt(batch);
+                RocksDBUtil.getInstance().writeBatch(batch);
+            }
+            LogUtil.d("ReIndex UTXO addresses finished ! ");
+        }
+    }
+
+    /**
+     * 将旧版本按交易ID存储的 TXOutput[] 转换为每个交易输出一条记录
+     * <p>
+     * 旧版本的数组在花费后会被压缩，数组下标不再是交易输出下标，
+     * 因此按顺序与原交易的交易输出逐个匹配，找回真正的交易输出下标。
+     * 交易中有相同的交易输出且部分已被花费时无法确定剩下的是哪一个，此时放弃迁移，从区块重建 UTXO 池
+     */
+    public void migrateLegacyUTXOs() {
+        synchronized (UTXOCache.getInstance()) {
+            int[] migrated = {0};
+            boolean[] ambiguous = {false};
+            try (WriteBatch batch = new WriteBatch()) {
+                RocksDBUtil.getInstance().forEachLegacyUTXOs((txId, legacyUTXOs) -> {
+                    TXOutput[] txOutputs = this.findTransactionOutputs(txId);
+                    if (legacyUTXOs.length < txOutputs.length && hasDuplicateOutputs(txOutputs)) {
+                        LogUtil.d("Can not migrate legacy UTXOs with duplicate outputs ! txId=" + txId);
+                        ambiguous[0] = true;
+                        return false;
+                    }
+                    int outIndex = 0;
+                    for (int legacyIndex = 0; legacyIndex < legacyUTXOs.length; legacyIndex++) {
+                        TXOutput utxo = legacyUTXOs[legacyIndex];
+                        while (outIndex < txOutputs.length && !txOutputs[outIndex].equals(utxo)) {
+                            outIndex++;
+                        }
+                        if (outIndex == txOutputs.length) {
+                            throw new RuntimeException("Fail to migrate legacy UTXOs ! output not found ! txId=" + txId);
+                        }
+                        RocksDBUtil.getInstance().deleteAddressUTXO(batch,
+                                Hex.encodeHexString(utxo.getPubKeyHash()), txId, legacyIndex);
+                        this.putUTXO(batch, txId, outIndex, utxo);
+                        outIndex++;
+                    }
+                    RocksDBUtil.getInstance().deleteLegacyUTXOs(batch, txId);
+                    migrated[0]++;
+                    return true;
+                });
+                if (ambiguous[0]) {
+                    this.reIndex();
+                    return;
+                }
+                if (migrated[0] == 0) {
+                    return;
+                }
+                RocksDBUtil.getInstance().writeBatch(batch);
+            }
+            LogUtil.d("Migrate legacy UTXOs finished ! transactions: " + migrated[0]);
+        }
+    }
+
+    /**
+     * 交易输出中是否有相同的交易输出（金额与公钥Hash都相同）
+     *
+     * @param txOutputs
+     * @return
+     */
+    private static boolean hasDuplicateOutputs(TXOutput[] txOutputs) {
+        return Sets.newHashSet(txOutputs).size() < txOutputs.length;
+    }
+
+    /**
+     * 查询交易的所有交易输出
+     *
+     * @param txId 交易ID
+     * @return
+     */
+    private TXOutput[] findTransactionOutputs(String txId) {
+        try {
+            return blockchain.findTransaction(Hex.decodeHex(txId.toCharArray())).getOutputs();
+        } catch (Exception e) {
+            throw new RuntimeException("Fail to find transaction ! txId=" + txId, e);
+        }
+    }
+
+    /**
+     * 从UTXO已同步到的区块开始，重放之后的区块，用于程序崩溃时缓存没有写入DB的情况
+     */
+    public void replay() {
+        synchronized (UTXOCache.getInstance()) {
+            String utxoTip = RocksDBUtil.getInstance().getUTXOTip();
+            if (blockchain.getLastBlockHash().equals(utxoTip)) {
+                return;
+            }
+            if (utxoTip.isEmpty()) {
+                // 旧版本的 chainstate 与区块在同一批量写入中提交，已经同步到最新区块
+                try (WriteBatch batch = new WriteBatch()) {
+                    RocksDBUtil.getInstance().putUTXOTip(batch, blockchain.getLastBlockHash());
+                    RocksDBUtil.getInstance().writeBatch(batch);
+                }
+                return;
+            }
+            long startHeight = 0;
+            if (ByteUtil.ZERO_HASH.equals(utxoTip)) {
+                // 从创世区块开始，先清空可能残留的 chainstate
+                RocksDBUtil.getInstance().cleanChainStateBucket();
+            } else {
+                startHeight = RocksDBUtil.getInstance().getBlock(utxoTip).getHeight() + 1;
+            }
+            LogUtil.d("Start to replay UTXO set from height " + startHeight + " !");
+            for (Iterator<Block> iterator = blockchain.getBlockchainForwardIterator(startHeight); iterator.hasNext(); ) {
+                Block block = iterator.next();
+                this.update(block);
+                if (block.getHeight() % REPLAY_PROGRESS_INTERVAL == 0) {
+                    LogUtil.d("Replay UTXO set progress: " + block.getHeight() + "/" + blockchain.getBestHeight());
+                }
+            }
+            UTXOCache.getInstance().flush();
+            LogUtil.d("Replay UTXO set finished ! ");
         }
-        LogUtil.d("ReIndex UTXO set finished ! ");
     }
 
     /**
@@ -45,31 +194,23 @@ public class UTXOSet {
      */
     public SpendableOutputResult findSpendableOutputs(byte[] pubKeyHash, int amount) {
         Map<String, int[]> unspentOuts = Maps.newHashMap();
-        int accumulated = 0;
-        Map<String, byte[]> chainstateBucket = RocksDBUtil.getInstance().getChainstateBucket();
-        for (Map.Entry<String, byte[]> entry : chainstateBucket.entrySet()) {
-            String txId = entry.getKey();
-            TXOutput[] txOutputs = (TXOutput[]) SerializeUtil.deserialize(entry.getValue());
-
-            for (int outId = 0; outId < txOutputs.length; outId++) {
-                TXOutput txOutput = txOutputs[outId];
-                if (txOutput.isLockedWithKey(pubKeyHash) && accumulated < amount) {
-                    accumulated += txOutput.getValue();
-
-                    int[] outIds = unspentOuts.get(txId);
-                    if (outIds == null) {
-                        outIds = new int[]{outId};
-                    } else {
-                        outIds = ArrayUtils.add(outIds, outId);
-                    }
-                    unspentOuts.put(txId, outIds);
-                    if (accumulated >= amount) {
-                        break;
-                    }
-                }
+        int[] accumulated = {0};
+        UTXOCache.getInstance().forEachAddressUTXOs(Hex.encodeHexString(pubKeyHash), (txId, outId, txOutput) -> {
+            if (accumulated[0] >= amount) {
+                return false;
             }
-        }
-        return new SpendableOutputResult(accumulated, unspentOuts);
+            accumulated[0] += txOutput.getValue();
+
+            int[] outIds = unspentOuts.get(txId);
+            if (outIds == null) {
+                outIds = new int[]{outId};
+            } else {
+                outIds = ArrayUtils.add(outIds, outId);
+            }
+            unspentOuts.put(txId, outIds);
+            return accumulated[0] < amount;
+        });
+        return new SpendableOutputResult(accumulated[0], unspentOuts);
     }
 
     /**
@@ -79,20 +220,56 @@ public class UTXOSet {
      * @return
      */
     public TXOutput[] findUTXOs(byte[] pubKeyHash) {
-        TXOutput[] utxos = {};
-        Map<String, byte[]> chainstateBucket = RocksDBUtil.getInstance().getChainstateBucket();
-        if (chainstateBucket.isEmpty()) {
-            return utxos;
-        }
-        for (byte[] value : chainstateBucket.values()) {
-            TXOutput[] txOutputs = (TXOutput[]) SerializeUtil.deserialize(value);
-            for (TXOutput txOutput : txOutputs) {
-                if (txOutput.isLockedWithKey(pubKeyHash)) {
-                    utxos = ArrayUtils.add(utxos, txOutput);
-                }
-            }
-        }
-        return utxos;
+        List<TXOutput> utxos = Lists.newArrayList();
+        UTXOCache.getInstance().forEachAddressUTXOs(Hex.encodeHexString(pubKeyHash), (txId, outId, txOutput) -> {
+            utxos.add(txOutput);
+            return true;
+        });
+        return utxos.toArray(new TXOutput[0]);
+    }
+
+    /**
+     * 查找钱包地址对应的所有UTXO及其位置
+     *
+     * @param pubKeyHash 钱包公钥Hash
+     * @return 交易输出位置 -> 交易输出
+     */
+    public Map<TXOutpoint, TXOutput> findUnspentOutputs(byte[] pubKeyHash) {
+        Map<TXOutpoint, TXOutput> unspentOutputs = Maps.newLinkedHashMap();
+        UTXOCache.getInstance().forEachAddressUTXOs(Hex.encodeHexString(pubKeyHash), (txId, outId, txOutput) -> {
+            unspentOutputs.put(new TXOutpoint(txId, outId), txOutput);
+            return true;
+        });
+        return unspentOutputs;
+    }
+
+    /**
+     * 查询钱包地址的余额
+     *
+     * @param pubKeyHash 钱包公钥Hash
+     * @return
+     */
+    public int getBalance(byte[] pubKeyHash) {
+        int[] balance = {0};
+        UTXOCache.getInstance().forEachAddressUTXOs(Hex.encodeHexString(pubKeyHash), (txId, outId, txOutput) -> {
+            balance[0] += txOutput.getValue();
+            return true;
+        });
+        return balance[0];
+    }
+
+    /**
+     * 保存UTXO以及对应的地址索引
+     *
+     * @param batch
+     * @param txId     交易ID
+     * @param outIndex 交易输出下标
+     * @param txOutput 交易输出
+     */
+    private void putUTXO(WriteBatch batch, String txId, int outIndex, TXOutput txOutput) {
+        RocksDBUtil.getInstance().putUTXO(batch, txId, outIndex, txOutput);
+        RocksDBUtil.getInstance().putAddressUTXO(batch,
+                Hex.encodeHexString(txOutput.getPubKeyHash()), txId, outIndex, txOutput);
     }
 
 
@@ -102,50 +279,36 @@ public class UTXOSet {
      * 当一个新的区块产生时，需要去做两件事情：
      * 1）从UTXO池中移除花费掉了的交易输出；
      * 2）保存新的未花费交易输出；
+     * <p>
+     * 变化先写入 UTXOCache，由缓存批量写入DB
      *
      * @param tipBlock 最新的区块
      */
-    @Synchronized
     public void update(Block tipBlock) {
-        if (tipBlock == null) {
-            LogUtil.d("Fail to update UTXO set ! tipBlock is null !");
-            throw new RuntimeException("Fail to update UTXO set ! ");
-        }
-        for (Transaction transaction : tipBlock.getTransactions()) {
-
-            // 根据交易输入排查出剩余未被使用的交易输出
-            if (!transaction.isCoinbase()) {
-                for (TXInput txInput : transaction.getInputs()) {
-                    // 余下未被使用的交易输出
-                    TXOutput[] remainderUTXOs = {};
-                    String txId = Hex.encodeHexString(txInput.getTxId());
-                    TXOutput[] txOutputs = RocksDBUtil.getInstance().getUTXOs(txId);
-
-                    if (txOutputs == null) {
-                        continue;
-                    }
+        synchronized (UTXOCache.getInstance()) {
+            if (tipBlock == null) {
+                LogUtil.d("Fail to update UTXO set ! tipBlock is null !");
+                throw new RuntimeException("Fail to update UTXO set ! ");
+            }
+            UTXOCache utxoCache = UTXOCache.getInstance();
+            for (Transaction transaction : tipBlock.getTransactions()) {
 
-                    for (int outIndex = 0; outIndex < txOutputs.length; outIndex++) {
-                        if (outIndex != txInput.getTxOutputIndex()) {
-                            remainderUTXOs = ArrayUtils.add(remainderUTXOs, txOutputs[outIndex]);
-                        }
+                // 花费掉的交易输出
+                if (!transaction.isCoinbase()) {
+                    for (TXInput txInput : transaction.getInputs()) {
+                        utxoCache.spend(new TXOutpoint(Hex.encodeHexString(txInput.getTxId()), txInput.getTxOutputIndex()));
                     }
+                }
 
-                    // 没有剩余则删除，否则更新
-                    if (remainderUTXOs.length == 0) {
-                        RocksDBUtil.getInstance().deleteUTXOs(txId);
-                    } else {
-                        RocksDBUtil.getInstance().putUTXOs(txId, remainderUTXOs);
-                    }
+                // 新的交易输出
+                String txId = Hex.encodeHexString(transaction.getTxId());
+                TXOutput[] txOutputs = transaction.getOutputs();
+                for (int outIndex = 0; outIndex < txOutputs.length; outIndex++) {
+                    utxoCache.add(new TXOutpoint(txId, outIndex), txOutputs[outIndex]);
                 }
             }
-
-            // 新的交易输出保存到DB中
-            TXOutput[] txOutputs = transaction.getOutputs();
-            String txId = Hex.encodeHexString(transaction.getTxId());
-            RocksDBUtil.getInstance().putUTXOs(txId, txOutputs);
+            utxoCache.blockApplied(tipBlock.getHash());
         }
-
     }
 
 }
@@ -39,6 +39,16 @@ public class ByteUtil {
         return ByteBuffer.allocate(Long.BYTES).putLong(number).array();
     }
 
+    /**
+     * long类型按大端序写入byte数组的指定位置
+     */
+    public static void putLong(byte[] bytes, int offset, long number) {
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            bytes[offset + i] = (byte) number;
+            number >>>= 8;
+        }
+    }
+
     /**
      * int到字节数组的转换.
      */
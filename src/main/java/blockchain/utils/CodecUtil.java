@@ -0,0 +1,377 @@
+package blockchain.utils;
+
+import blockchain.block.Block;
+import blockchain.pow.ProofOfWork;
+import blockchain.transaction.TXInput;
+import blockchain.transaction.TXOutput;
+import blockchain.transaction.Transaction;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 区块与交易的规范二进制编码
+ * <p>
+ * 编码结果确定且与序列化框架无关，用于交易Hash、数据存储以及网络传输。
+ * 整数使用大端序定长编码，长度使用 varint 编码；可为空的字节数组以 (长度 + 1) 作为前缀，0 表示 null。
+ * <p>
+ * 存储记录以 RECORD_MAGIC 开头，紧跟格式版本号；交易编码以交易版本号开头。
+ * 旧版本的 Kryo 记录首字节不会是 RECORD_MAGIC，据此区分
+ */
+public class CodecUtil {
+    /**
+     * 存储记录的标记字节
+     */
+    public static final byte RECORD_MAGIC = (byte) 0xBC;
+    /**
+     * 当前的区块记录格式版本
+     */
+    public static final byte BLOCK_VERSION = 2;
+    /**
+     * 当前的交易输出记录格式版本
+     */
+    public static final byte TX_OUTPUT_VERSION = 1;
+
+    private CodecUtil() {
+    }
+
+    /*---- Block ----*/
+
+    /**
+     * 区块编码
+     *
+     * @param block
+     * @return
+     */
+    public static byte[] encodeBlock(Block block) {
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize(block));
+        encodeBlock(block, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * 区块编码后的字节数
+     *
+     * @param block
+     * @return
+     */
+    public static int blockSize(Block block) {
+        int size = 2 + Long.BYTES * 3 + hexSize(block.getPrevBlockHash()) + hexSize(block.getHash());
+        if (!block.isLegacyDifficulty()) {
+            size += Integer.BYTES;
+        }
+        Transaction[] transactions = block.getTransactions();
+        size += varIntSize(transactions.length);
+        for (Transaction transaction : transactions) {
+            int transactionSize = transactionSize(transaction);
+            size += varIntSize(transactionSize) + transactionSize;
+        }
+        return size;
+    }
+
+    /**
+     * 区块编码写入缓冲区
+     * <p>
+     * 没有记录难度的旧版本区块仍然按版本 1 编码，重新保存后依然可以区分
+     *
+     * @param block
+     * @param buffer
+     */
+    public static void encodeBlock(Block block, ByteBuffer buffer) {
+        buffer.put(RECORD_MAGIC);
+        buffer.put(block.isLegacyDifficulty() ? 1 : BLOCK_VERSION);
+        buffer.putLong(block.getHeight());
+        buffer.putLong(block.getTimestamp());
+        buffer.putLong(block.getNonce());
+        if (!block.isLegacyDifficulty()) {
+            buffer.putInt(block.getTargetBits());
+        }
+        putHex(buffer, block.getPrevBlockHash());
+        putHex(buffer, block.getHash());
+        Transaction[] transactions = block.getTransactions();
+        putVarInt(buffer, transactions.length);
+        for (Transaction transaction : transactions) {
+            // 交易带长度前缀，读取时可以跳过
+            putVarInt(buffer, transactionSize(transaction));
+            encodeTransaction(transaction, buffer);
+        }
+    }
+
+    /**
+     * 从缓冲区解码区块
+     *
+     * @param buffer
+     * @return
+     */
+    public static Block decodeBlock(ByteBuffer buffer) {
+        checkMagic(buffer);
+        byte version = buffer.get();
+        if (version < 1 || version > BLOCK_VERSION) {
+            throw new IllegalArgumentException("Unsupported block version ! version=" + version);
+        }
+        Block block = new Block();
+        block.setHeight(buffer.getLong());
+        block.setTimestamp(buffer.getLong());
+        block.setNonce(buffer.getLong());
+        // 版本 1 的区块没有记录难度，使用固定的难度
+        block.setTargetBits(version >= 2 ? buffer.getInt() : ProofOfWork.TARGET_BITS);
+        block.setLegacyDifficulty(version < 2);
+        block.setPrevBlockHash(getHex(buffer));
+        block.setHash(getHex(buffer));
+        Transaction[] transactions = new Transaction[getVarInt(buffer)];
+        for (int i = 0; i < transactions.length; i++) {
+            getVarInt(buffer);
+            transactions[i] = decodeTransaction(buffer);
+        }
+        block.setTransactions(transactions);
+        return block;
+    }
+
+    /*---- Transaction ----*/
+
+    /**
+     * 交易编码
+     *
+     * @param transaction
+     * @return
+     */
+    public static byte[] encodeTransaction(Transaction transaction) {
+        ByteBuffer buffer = ByteBuffer.allocate(transactionSize(transaction));
+        encodeTransaction(transaction, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * 交易编码后的字节数
+     *
+     * @param transaction
+     * @return
+     */
+    public static int transactionSize(Transaction transaction) {
+        int size = 1 + bytesSize(transaction.getTxId()) + varIntSize(transaction.getInputs().length)
+                + varIntSize(transaction.getOutputs().length);
+        for (TXInput txInput : transaction.getInputs()) {
+            size += txInputSize(txInput);
+        }
+        for (TXOutput txOutput : transaction.getOutputs()) {
+            size += txOutputSize(txOutput);
+        }
+        return size;
+    }
+
+    /**
+     * 交易编码写入缓冲区
+     *
+     * @param transaction
+     * @param buffer
+     */
+    public static void encodeTransaction(Transaction transaction, ByteBuffer buffer) {
+        buffer.put((byte) transaction.getVersion());
+        putBytes(buffer, transaction.getTxId());
+        putVarInt(buffer, transaction.getInputs().length);
+        for (TXInput txInput : transaction.getInputs()) {
+            encodeTXInput(txInput, buffer);
+        }
+        putVarInt(buffer, transaction.getOutputs().length);
+        for (TXOutput txOutput : transaction.getOutputs()) {
+            encodeTXOutput(txOutput, buffer);
+        }
+    }
+
+    /**
+     * 从缓冲区解码交易
+     *
+     * @param buffer
+     * @return
+     */
+    public static Transaction decodeTransaction(ByteBuffer buffer) {
+        int version = buffer.get();
+        if (version < Transaction.LEGACY_VERSION || version > Transaction.VERSION) {
+            throw new IllegalArgumentException("Unsupported transaction version ! version=" + version);
+        }
+        byte[] txId = getBytes(buffer);
+        TXInput[] txInputs = new TXInput[getVarInt(buffer)];
+        for (int i = 0; i < txInputs.length; i++) {
+            txInputs[i] = decodeTXInput(buffer);
+        }
+        TXOutput[] txOutputs = new TXOutput[getVarInt(buffer)];
+        for (int i = 0; i < txOutputs.length; i++) {
+            txOutputs[i] = decodeTXOutput(buffer);
+        }
+        Transaction transaction = new Transaction(txId, txInputs, txOutputs);
+        transaction.setVersion(version);
+        return transaction;
+    }
+
+    /**
+     * 交易编码中每个交易输入的起始位置，最后一个元素为最后一个交易输入的结束位置
+     *
+     * @param transaction
+     * @return
+     */
+    public static int[] inputOffsets(Transaction transaction) {
+        TXInput[] txInputs = transaction.getInputs();
+        int[] offsets = new int[txInputs.length + 1];
+        offsets[0] = 1 + bytesSize(transaction.getTxId()) + varIntSize(txInputs.length);
+        for (int i = 0; i < txInputs.length; i++) {
+            offsets[i + 1] = offsets[i] + txInputSize(txInputs[i]);
+        }
+        return offsets;
+    }
+
+    /*---- TXInput ----*/
+
+    public static int txInputSize(TXInput txInput) {
+        return bytesSize(txInput.getTxId()) + Integer.BYTES + bytesSize(txInput.getSignature()) + bytesSize(txInput.getPubKey());
+    }
+
+    public static void encodeTXInput(TXInput txInput, ByteBuffer buffer) {
+        putBytes(buffer, txInput.getTxId());
+        buffer.putInt(txInput.getTxOutputIndex());
+        putBytes(buffer, txInput.getSignature());
+        putBytes(buffer, txInput.getPubKey());
+    }
+
+    public static TXInput decodeTXInput(ByteBuffer buffer) {
+        return new TXInput(getBytes(buffer), buffer.getInt(), getBytes(buffer), getBytes(buffer));
+    }
+
+    /*---- TXOutput ----*/
+
+    public static int txOutputSize(TXOutput txOutput) {
+        return Integer.BYTES + bytesSize(txOutput.getPubKeyHash());
+    }
+
+    public static void encodeTXOutput(TXOutput txOutput, ByteBuffer buffer) {
+        buffer.putInt(txOutput.getValue());
+        putBytes(buffer, txOutput.getPubKeyHash());
+    }
+
+    public static TXOutput decodeTXOutput(ByteBuffer buffer) {
+        return new TXOutput(buffer.getInt(), getBytes(buffer));
+    }
+
+    /**
+     * 交易输出存储记录
+     *
+     * @param txOutput
+     * @return
+     */
+    public static byte[] encodeTXOutputRecord(TXOutput txOutput) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 + txOutputSize(txOutput));
+        buffer.put(RECORD_MAGIC);
+        buffer.put(TX_OUTPUT_VERSION);
+        encodeTXOutput(txOutput, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * 解析交易输出存储记录
+     *
+     * @param bytes
+     * @return
+     */
+    public static TXOutput decodeTXOutputRecord(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        checkMagic(buffer);
+        byte version = buffer.get();
+        if (version != TX_OUTPUT_VERSION) {
+            throw new IllegalArgumentException("Unsupported tx output version ! version=" + version);
+        }
+        return decodeTXOutput(buffer);
+    }
+
+    /**
+     * 是否为规范编码的存储记录
+     *
+     * @param bytes
+     * @return
+     */
+    public static boolean isRecord(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == RECORD_MAGIC;
+    }
+
+    /*---- 基础类型 ----*/
+
+    private static void checkMagic(ByteBuffer buffer) {
+        if (buffer.get() != RECORD_MAGIC) {
+            throw new IllegalArgumentException("Invalid record ! ");
+        }
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint ! ");
+    }
+
+    private static int bytesSize(byte[] bytes) {
+        if (bytes == null) {
+            return 1;
+        }
+        return varIntSize(bytes.length + 1) + bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            putVarInt(buffer, 0);
+            return;
+        }
+        putVarInt(buffer, bytes.length + 1);
+        buffer.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = getVarInt(buffer) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 十六进制字符串按原始字节编码
+     */
+    private static int hexSize(String hex) {
+        return hex == null ? 1 : bytesSize(new byte[hex.length() / 2]);
+    }
+
+    private static void putHex(ByteBuffer buffer, String hex) {
+        try {
+            putBytes(buffer, hex == null ? null : Hex.decodeHex(hex.toCharArray()));
+        } catch (DecoderException e) {
+            throw new IllegalArgumentException("Invalid hex string ! " + hex, e);
+        }
+    }
+
+    private static String getHex(ByteBuffer buffer) {
+        byte[] bytes = getBytes(buffer);
+        return bytes == null ? null : Hex.encodeHexString(bytes);
+    }
+}
@@ -0,0 +1,148 @@
+package blockchain.utils;
+
+import lombok.Getter;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.jce.spec.ECParameterSpec;
+import org.bouncycastle.jce.spec.ECPublicKeySpec;
+import org.bouncycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.Signature;
+import java.util.Arrays;
+
+/**
+ * 椭圆曲线加密上下文
+ * <p>
+ * BouncyCastle Provider 只注册一次，secp256k1 曲线参数只解析一次；
+ * KeyFactory、Signature、KeyPairGenerator 不是线程安全的，每个线程各自持有一份并重复使用。
+ * 由公钥字节解码得到的 PublicKey 保存在有容量上限的共享缓存中
+ */
+public class CryptoContext {
+    /**
+     * 公钥缓存的最大记录数，可通过 -Dharmony.pubkey.cache.entries 配置
+     */
+    private static final int PUBLIC_KEY_CACHE_ENTRIES = Integer.parseInt(System.getProperty("harmony.pubkey.cache.entries", "10000"));
+
+    static {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    /**
+     * secp256k1 曲线参数
+     * <p>
+     * bitcoin 为什么会选择 secp256k1，详见：https://bitcointalk.org/index.php?topic=151120.0
+     */
+    public static final ECParameterSpec EC_PARAMETERS = ECNamedCurveTable.getParameterSpec("secp256k1");
+
+    private static final ThreadLocal<CryptoContext> CONTEXT = ThreadLocal.withInitial(CryptoContext::new);
+
+    /**
+     * 公钥缓存，key 为 65 字节的未压缩公钥，按访问顺序淘汰
+     */
+    private static final LruMap<ByteBuffer, PublicKey> PUBLIC_KEYS = new LruMap<>(1024, PUBLIC_KEY_CACHE_ENTRIES);
+    @Getter
+    private static long publicKeyHitCount;
+    @Getter
+    private static long publicKeyMissCount;
+
+    private final KeyFactory keyFactory;
+    private final Signature signature;
+    private KeyPairGenerator keyPairGenerator;
+
+    private CryptoContext() {
+        try {
+            this.keyFactory = KeyFactory.getInstance("ECDSA", BouncyCastleProvider.PROVIDER_NAME);
+            this.signature = Signature.getInstance("SHA256withECDSA", BouncyCastleProvider.PROVIDER_NAME);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Fail to init crypto context ! ", e);
+        }
+    }
+
+    /**
+     * 获取当前线程的加密上下文
+     *
+     * @return
+     */
+    public static CryptoContext get() {
+        return CONTEXT.get();
+    }
+
+    /**
+     * 创建新的密钥对
+     *
+     * @return
+     */
+    public KeyPair generateKeyPair() throws GeneralSecurityException {
+        if (this.keyPairGenerator == null) {
+            // 创建椭圆曲线算法的密钥对生成器，算法为 ECDSA
+            this.keyPairGenerator = KeyPairGenerator.getInstance("ECDSA", BouncyCastleProvider.PROVIDER_NAME);
+            this.keyPairGenerator.initialize(EC_PARAMETERS, new SecureRandom());
+        }
+        return this.keyPairGenerator.generateKeyPair();
+    }
+
+    /**
+     * 签名
+     *
+     * @param privateKey 私钥
+     * @param data       被签名的数据
+     * @return
+     */
+    public byte[] sign(PrivateKey privateKey, byte[] data) throws GeneralSecurityException {
+        this.signature.initSign(privateKey);
+        this.signature.update(data);
+        return this.signature.sign();
+    }
+
+    /**
+     * 验证签名
+     *
+     * @param pubKey    公钥（未压缩格式，65 字节）
+     * @param data      被签名的数据
+     * @param signature 签名
+     * @return
+     */
+    public boolean verify(byte[] pubKey, byte[] data, byte[] signature) throws GeneralSecurityException {
+        this.signature.initVerify(this.getPublicKey(pubKey));
+        this.signature.update(data);
+        return this.signature.verify(signature);
+    }
+
+    /**
+     * 由公钥字节解码得到 PublicKey，优先从缓存获取
+     *
+     * @param pubKey 公钥（未压缩格式，65 字节）
+     * @return
+     */
+    public PublicKey getPublicKey(byte[] pubKey) throws GeneralSecurityException {
+        synchronized (PUBLIC_KEYS) {
+            PublicKey publicKey = PUBLIC_KEYS.get(ByteBuffer.wrap(pubKey));
+            if (publicKey != null) {
+                publicKeyHitCount++;
+                return publicKey;
+            }
+            publicKeyMissCount++;
+        }
+        // 使用椭圆曲线 x,y 点去生成公钥Key
+        BigInteger x = new BigInteger(1, Arrays.copyOfRange(pubKey, 1, 33));
+        BigInteger y = new BigInteger(1, Arrays.copyOfRange(pubKey, 33, 65));
+        ECPoint ecPoint = EC_PARAMETERS.getCurve().createPoint(x, y);
+        PublicKey publicKey = this.keyFactory.generatePublic(new ECPublicKeySpec(ecPoint, EC_PARAMETERS));
+        synchronized (PUBLIC_KEYS) {
+            PUBLIC_KEYS.put(ByteBuffer.wrap(pubKey.clone()), publicKey);
+        }
+        return publicKey;
+    }
+}
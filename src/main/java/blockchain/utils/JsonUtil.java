@@ -0,0 +1,323 @@
+package blockchain.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON 解析与生成
+ * <p>
+ * 对象解析为 LinkedHashMap，数组解析为 ArrayList，整数解析为 Long，小数解析为 Double。
+ * 生成时支持 Map、Iterable、数组、字符串、数字、布尔值和 null，其它对象使用 toString()
+ */
+public class JsonUtil {
+    /**
+     * 对象与数组的最大嵌套层数，超过时解析失败，避免递归解析时栈溢出
+     */
+    public static final int MAX_DEPTH = 64;
+
+    private JsonUtil() {
+    }
+
+    /**
+     * 解析 JSON 文本
+     *
+     * @param json
+     * @return
+     */
+    public static Object parse(String json) {
+        Parser parser = new Parser(json);
+        Object value = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.position != json.length()) {
+            throw parser.error("Unexpected trailing characters");
+        }
+        return value;
+    }
+
+    /**
+     * 生成 JSON 文本
+     *
+     * @param value
+     * @return
+     */
+    public static String toJson(Object value) {
+        StringBuilder builder = new StringBuilder();
+        write(builder, value);
+        return builder.toString();
+    }
+
+    private static void write(StringBuilder builder, Object value) {
+        if (value == null) {
+            builder.append("null");
+        } else if (value instanceof String) {
+            writeString(builder, (String) value);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            builder.append(value);
+        } else if (value instanceof Map) {
+            builder.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                writeString(builder, String.valueOf(entry.getKey()));
+                builder.append(':');
+                write(builder, entry.getValue());
+            }
+            builder.append('}');
+        } else if (value instanceof Iterable) {
+            builder.append('[');
+            boolean first = true;
+            for (Object item : (Iterable<?>) value) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                write(builder, item);
+            }
+            builder.append(']');
+        } else if (value instanceof Object[]) {
+            List<Object> items = new ArrayList<>();
+            for (Object item : (Object[]) value) {
+                items.add(item);
+            }
+            write(builder, items);
+        } else {
+            writeString(builder, value.toString());
+        }
+    }
+
+    private static void writeString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+
+    private static class Parser {
+        private final String json;
+        private int position;
+        /**
+         * 当前所在的对象与数组的嵌套层数
+         */
+        private int depth;
+
+        Parser(String json) {
+            this.json = json;
+        }
+
+        Object readValue() {
+            this.skipWhitespace();
+            if (this.position >= this.json.length()) {
+                throw this.error("Unexpected end of input");
+            }
+            char c = this.json.charAt(this.position);
+            switch (c) {
+                case '{':
+                    return this.readObject();
+                case '[':
+                    return this.readArray();
+                case '"':
+                    return this.readString();
+                case 't':
+                    this.expect("true");
+                    return Boolean.TRUE;
+                case 'f':
+                    this.expect("false");
+                    return Boolean.FALSE;
+                case 'n':
+                    this.expect("null");
+                    return null;
+                default:
+                    return this.readNumber();
+            }
+        }
+
+        private Map<String, Object> readObject() {
+            Map<String, Object> object = new LinkedHashMap<>();
+            this.enter();
+            this.position++;
+            this.skipWhitespace();
+            if (this.peek() == '}') {
+                this.position++;
+                this.depth--;
+                return object;
+            }
+            while (true) {
+                this.skipWhitespace();
+                if (this.peek() != '"') {
+                    throw this.error("Expected object key");
+                }
+                String key = this.readString();
+                this.skipWhitespace();
+                this.expect(":");
+                object.put(key, this.readValue());
+                this.skipWhitespace();
+                char c = this.next();
+                if (c == '}') {
+                    this.depth--;
+                    return object;
+                }
+                if (c != ',') {
+                    throw this.error("Expected ',' or '}'");
+                }
+            }
+        }
+
+        private List<Object> readArray() {
+            List<Object> array = new ArrayList<>();
+            this.enter();
+            this.position++;
+            this.skipWhitespace();
+            if (this.peek() == ']') {
+                this.position++;
+                this.depth--;
+                return array;
+            }
+            while (true) {
+                array.add(this.readValue());
+                this.skipWhitespace();
+                char c = this.next();
+                if (c == ']') {
+                    this.depth--;
+                    return array;
+                }
+                if (c != ',') {
+                    throw this.error("Expected ',' or ']'");
+                }
+            }
+        }
+
+        private String readString() {
+            StringBuilder builder = new StringBuilder();
+            this.position++;
+            while (true) {
+                char c = this.next();
+                if (c == '"') {
+                    return builder.toString();
+                }
+                if (c != '\\') {
+                    builder.append(c);
+                    continue;
+                }
+                char escaped = this.next();
+                switch (escaped) {
+                    case 'b':
+                        builder.append('\b');
+                        break;
+                    case 'f':
+                        builder.append('\f');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    case 'u':
+                        if (this.position + 4 > this.json.length()) {
+                            throw this.error("Invalid unicode escape");
+                        }
+                        try {
+                            builder.append((char) Integer.parseInt(this.json.substring(this.position, this.position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw this.error("Invalid unicode escape");
+                        }
+                        this.position += 4;
+                        break;
+                    default:
+                        builder.append(escaped);
+                }
+            }
+        }
+
+        private Number readNumber() {
+            int start = this.position;
+            boolean decimal = false;
+            while (this.position < this.json.length()) {
+                char c = this.json.charAt(this.position);
+                if (c == '.' || c == 'e' || c == 'E') {
+                    decimal = true;
+                } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+                    break;
+                }
+                this.position++;
+            }
+            String number = this.json.substring(start, this.position);
+            try {
+                return decimal ? (Number) Double.valueOf(number) : (Number) Long.valueOf(number);
+            } catch (NumberFormatException e) {
+                throw this.error("Invalid value");
+            }
+        }
+
+        /**
+         * 进入一层对象或数组
+         */
+        private void enter() {
+            if (++this.depth > MAX_DEPTH) {
+                throw this.error("Nesting deeper than " + MAX_DEPTH);
+            }
+        }
+
+        private void expect(String token) {
+            if (!this.json.startsWith(token, this.position)) {
+                throw this.error("Expected '" + token + "'");
+            }
+            this.position += token.length();
+        }
+
+        private char peek() {
+            if (this.position >= this.json.length()) {
+                throw this.error("Unexpected end of input");
+            }
+            return this.json.charAt(this.position);
+        }
+
+        private char next() {
+            char c = this.peek();
+            this.position++;
+            return c;
+        }
+
+        void skipWhitespace() {
+            while (this.position < this.json.length() && Character.isWhitespace(this.json.charAt(this.position))) {
+                this.position++;
+            }
+        }
+
+        private RuntimeException error(String message) {
+            return new RuntimeException("Fail to parse json ! " + message + " at position " + this.position);
+        }
+    }
+}
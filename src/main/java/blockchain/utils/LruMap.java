@@ -0,0 +1,29 @@
+package blockchain.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 有容量上限的 LinkedHashMap，按访问顺序排列，超出容量时淘汰最久未使用的记录
+ * <p>
+ * 非线程安全，由使用方负责同步
+ */
+public class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 最大记录数
+     */
+    private final int maxEntries;
+
+    public LruMap(int initialCapacity, int maxEntries) {
+        super(initialCapacity, 0.75f, true);
+        this.maxEntries = maxEntries;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > this.maxEntries;
+    }
+}
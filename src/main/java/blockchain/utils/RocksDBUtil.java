@@ -1,16 +1,26 @@
 package blockchain.utils;
 
 import blockchain.block.Block;
+import blockchain.block.TxLocation;
 import blockchain.transaction.TXOutput;
-import lombok.Getter;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
-import com.google.common.collect.Maps;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
 
 /**
  * 数据持久化，数据库
+ * <p>
+ * 每个区块、每条UTXO记录都以独立的 key 存储，key 由桶前缀 + 记录ID 组成，
+ * 读写都是单点操作，遍历时按前缀迭代
  */
 public class RocksDBUtil {
     /**
@@ -20,15 +30,71 @@ public class RocksDBUtil {
     /**
      * 区块桶前缀
      */
-    private static final String BLOCKS_BUCKET_KEY = "blocks";
+    private static final String BLOCKS_BUCKET_PREFIX = "blocks_";
     /**
-     * 链状态桶Key
+     * 旧版本的链状态桶前缀，按交易ID存储 TXOutput[]
      */
-    private static final String CHAINSTATE_BUCKET_KEY = "chainstate";
+    private static final String CHAINSTATE_BUCKET_PREFIX = "chainstate_";
+    /**
+     * UTXO前缀，key 为 前缀 + 交易ID + "_" + 交易输出下标，每个交易输出一条记录
+     */
+    private static final String UTXO_PREFIX = "utxo_";
+    /**
+     * 区块高度索引前缀
+     */
+    private static final String BLOCK_HEIGHT_PREFIX = "height_";
+    /**
+     * 旧版本带高度的 Kryo 区块记录标记。更早的区块记录直接以 Kryo 数据开头，首字节不会为 0
+     */
+    private static final byte BLOCK_RECORD_WITH_HEIGHT = 0;
+    /**
+     * 交易索引前缀
+     */
+    private static final String TX_INDEX_PREFIX = "txindex_";
+    /**
+     * 交易索引已同步到的区块Hash
+     */
+    private static final String TX_INDEX_TIP_KEY = "txindextip";
+    /**
+     * 旧版本的交易索引同步位置Key，位于交易索引前缀之内，读取时兼容，写入新Key时删除
+     */
+    private static final String LEGACY_TX_INDEX_TIP_KEY = TX_INDEX_PREFIX + "l";
+    /**
+     * 清空 chainstate 时每批删除的记录数
+     */
+    private static final int CLEAN_BATCH_SIZE = 10000;
+    /**
+     * UTXO已同步到的区块Hash
+     */
+    private static final String UTXO_TIP_KEY = "utxotip";
+    /**
+     * 地址索引前缀，key 为 前缀 + 公钥Hash + "_" + 交易ID + "_" + 交易输出下标
+     */
+    private static final String ADDRESS_INDEX_PREFIX = "addrindex_";
+    /**
+     * 地址索引是否已建立，旧版本的数据库没有地址索引
+     */
+    private static final String ADDRESS_INDEX_BUILT_KEY = "addrindex";
     /**
      * 最新一个区块
      */
     private static final String LAST_BLOCK_KEY = "l";
+    /**
+     * 旧版本的区块桶Key，整个桶序列化为一个value
+     */
+    private static final String LEGACY_BLOCKS_BUCKET_KEY = "blocks";
+    /**
+     * 旧版本的链状态桶Key
+     */
+    private static final String LEGACY_CHAINSTATE_BUCKET_KEY = "chainstate";
+    /**
+     * 批量提交时是否 fsync，可通过 -Dharmony.db.sync=false 关闭
+     */
+    private static final boolean SYNC_WRITES = Boolean.parseBoolean(System.getProperty("harmony.db.sync", "true"));
+    /**
+     * 批量提交时是否跳过 WAL，可通过 -Dharmony.db.disableWAL=true 开启
+     */
+    private static final boolean DISABLE_WAL = Boolean.parseBoolean(System.getProperty("harmony.db.disableWAL", "false"));
 
     private volatile static RocksDBUtil instance;
 
@@ -46,19 +112,17 @@ public class RocksDBUtil {
     private RocksDB db;
 
     /**
-     * block buckets
+     * 批量提交使用的写配置
      */
-    private Map<String, byte[]> blocksBucket;
+    private WriteOptions batchWriteOptions;
     /**
-     * chainstate buckets
+     * 已执行的 fsync 提交次数
      */
-    @Getter
-    private Map<String, byte[]> chainstateBucket;
+    private final AtomicLong syncCount = new AtomicLong();
 
     private RocksDBUtil() {
         openDB();
-        initBlockBucket();
-        initChainStateBucket();
+        migrateLegacyBuckets();
     }
 
     /**
@@ -67,45 +131,139 @@ public class RocksDBUtil {
     private void openDB() {
         try {
             db = RocksDB.open(DB_FILE);
+            batchWriteOptions = new WriteOptions().setSync(SYNC_WRITES).setDisableWAL(DISABLE_WAL);
         } catch (RocksDBException e) {
             throw new RuntimeException("Fail to open db ! ", e);
         }
     }
 
     /**
-     * 初始化 blocks 数据桶
+     * 将旧版本的桶数据（整个 Map 序列化为一个 value）迁移为每条记录一个 key
+     * <p>
+     * 迁移在一个 WriteBatch 中完成，旧的桶 key 同时被删除，所以只会执行一次
      */
-    private void initBlockBucket() {
-        try {
-            byte[] blockBucketKey = SerializeUtil.serialize(BLOCKS_BUCKET_KEY);
-            byte[] blockBucketBytes = db.get(blockBucketKey);
-            if (blockBucketBytes != null) {
-                blocksBucket = (Map) SerializeUtil.deserialize(blockBucketBytes);
-            } else {
-                blocksBucket = Maps.newHashMap();
-                db.put(blockBucketKey, SerializeUtil.serialize(blocksBucket));
+    private void migrateLegacyBuckets() {
+        byte[] legacyBlocksKey = SerializeUtil.serialize(LEGACY_BLOCKS_BUCKET_KEY);
+        byte[] legacyChainstateKey = SerializeUtil.serialize(LEGACY_CHAINSTATE_BUCKET_KEY);
+        try (WriteBatch batch = new WriteBatch(); WriteOptions writeOptions = new WriteOptions()) {
+            byte[] blocksBucketBytes = db.get(legacyBlocksKey);
+            byte[] chainstateBucketBytes = db.get(legacyChainstateKey);
+            if (blocksBucketBytes == null && chainstateBucketBytes == null) {
+                return;
+            }
+            LogUtil.d("Start to migrate legacy db buckets !");
+            if (blocksBucketBytes != null) {
+                Map<String, byte[]> blocksBucket = deserializeBucket(blocksBucketBytes);
+                for (Map.Entry<String, byte[]> entry : blocksBucket.entrySet()) {
+                    if (LAST_BLOCK_KEY.equals(entry.getKey())) {
+                        batch.put(key(LAST_BLOCK_KEY), entry.getValue());
+                    } else {
+                        batch.put(key(BLOCKS_BUCKET_PREFIX + entry.getKey()), entry.getValue());
+                    }
+                }
+                batch.remove(legacyBlocksKey);
             }
+            if (chainstateBucketBytes != null) {
+                Map<String, byte[]> chainstateBucket = deserializeBucket(chainstateBucketBytes);
+                for (Map.Entry<String, byte[]> entry : chainstateBucket.entrySet()) {
+                    batch.put(key(CHAINSTATE_BUCKET_PREFIX + entry.getKey()), entry.getValue());
+                }
+                batch.remove(legacyChainstateKey);
+            }
+            writeOptions.setSync(true);
+            db.write(writeOptions, batch);
+            LogUtil.d("Migrate legacy db buckets finished ! ");
         } catch (RocksDBException e) {
-            throw new RuntimeException("Fail to init block bucket ! ", e);
+            throw new RuntimeException("Fail to migrate legacy db buckets ! ", e);
         }
     }
 
     /**
-     * 初始化 blocks 数据桶
+     * 反序列化旧版本的桶数据
+     *
+     * @param bucketBytes
+     * @return key -> 序列化的记录
      */
-    private void initChainStateBucket() {
-        try {
-            byte[] chainstateBucketKey = SerializeUtil.serialize(CHAINSTATE_BUCKET_KEY);
-            byte[] chainstateBucketBytes = db.get(chainstateBucketKey);
-            if (chainstateBucketBytes != null) {
-                chainstateBucket = (Map) SerializeUtil.deserialize(chainstateBucketBytes);
-            } else {
-                chainstateBucket = Maps.newHashMap();
-                db.put(chainstateBucketKey, SerializeUtil.serialize(chainstateBucket));
+    @SuppressWarnings("unchecked")
+    private static Map<String, byte[]> deserializeBucket(byte[] bucketBytes) {
+        return (Map<String, byte[]>) SerializeUtil.deserialize(bucketBytes);
+    }
+
+    /**
+     * 生成数据库 key
+     *
+     * @param key
+     * @return
+     */
+    private static byte[] key(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 区块记录，使用规范二进制编码
+     *
+     * @param block
+     * @return
+     */
+    private static byte[] encodeBlock(Block block) {
+        return CodecUtil.encodeBlock(block);
+    }
+
+    /**
+     * 解析区块记录
+     * <p>
+     * 兼容旧版本的 Kryo 记录：标记位 + 区块高度 + 区块数据，以及更早的没有高度的记录，高度记为 -1
+     *
+     * @param bytes
+     * @return
+     */
+    private static Block decodeBlock(byte[] bytes) {
+        if (CodecUtil.isRecord(bytes)) {
+            return CodecUtil.decodeBlock(ByteBuffer.wrap(bytes));
+        }
+        if (bytes[0] != BLOCK_RECORD_WITH_HEIGHT) {
+            Block block = (Block) SerializeUtil.deserialize(bytes);
+            block.setHeight(-1);
+            block.setLegacyDifficulty(true);
+            return block;
+        }
+        Block block = (Block) SerializeUtil.deserialize(Arrays.copyOfRange(bytes, 1 + Long.BYTES, bytes.length));
+        block.setHeight(ByteBuffer.wrap(bytes, 1, Long.BYTES).getLong());
+        block.setLegacyDifficulty(true);
+        return block;
+    }
+
+    /**
+     * 交易输出记录，兼容旧版本的 Kryo 记录
+     *
+     * @param bytes
+     * @return
+     */
+    private static TXOutput decodeTXOutput(byte[] bytes) {
+        if (CodecUtil.isRecord(bytes)) {
+            return CodecUtil.decodeTXOutputRecord(bytes);
+        }
+        return (TXOutput) SerializeUtil.deserialize(bytes);
+    }
+
+    /**
+     * 按前缀遍历数据
+     *
+     * @param prefix  key前缀
+     * @param visitor 参数为去掉前缀后的key以及value，返回 false 时停止遍历
+     */
+    private void scanPrefix(String prefix, BiPredicate<String, byte[]> visitor) {
+        byte[] prefixBytes = key(prefix);
+        try (RocksIterator iterator = db.newIterator()) {
+            for (iterator.seek(prefixBytes); iterator.isValid(); iterator.next()) {
+                String key = new String(iterator.key(), StandardCharsets.UTF_8);
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                if (!visitor.test(key.substring(prefix.length()), iterator.value())) {
+                    break;
+                }
             }
-        } catch (RocksDBException e) {
-            LogUtil.d("Fail to init chainstate bucket ! " + e);
-            throw new RuntimeException("Fail to init chainstate bucket ! ", e);
         }
     }
 
@@ -116,24 +274,37 @@ public class RocksDBUtil {
      */
     public void putLastBlockHash(String tipBlockHash) {
         try {
-            blocksBucket.put(LAST_BLOCK_KEY, SerializeUtil.serialize(tipBlockHash));
-            db.put(SerializeUtil.serialize(BLOCKS_BUCKET_KEY), SerializeUtil.serialize(blocksBucket));
+            db.put(key(LAST_BLOCK_KEY), SerializeUtil.serialize(tipBlockHash));
         } catch (RocksDBException e) {
             throw new RuntimeException("Fail to put last block hash ! ", e);
         }
     }
 
+    /**
+     * 在批量写入中保存最新一个区块的Hash值
+     *
+     * @param batch
+     * @param tipBlockHash
+     */
+    public void putLastBlockHash(WriteBatch batch, String tipBlockHash) {
+        batch.put(key(LAST_BLOCK_KEY), SerializeUtil.serialize(tipBlockHash));
+    }
+
     /**
      * 查询最新一个区块的Hash值
      *
      * @return
      */
     public String getLastBlockHash() {
-        byte[] lastBlockHashBytes = blocksBucket.get(LAST_BLOCK_KEY);
-        if (lastBlockHashBytes != null) {
-            return (String) SerializeUtil.deserialize(lastBlockHashBytes);
+        try {
+            byte[] lastBlockHashBytes = db.get(key(LAST_BLOCK_KEY));
+            if (lastBlockHashBytes != null) {
+                return (String) SerializeUtil.deserialize(lastBlockHashBytes);
+            }
+            return "";
+        } catch (RocksDBException e) {
+            throw new RuntimeException("Fail to get last block hash ! ", e);
         }
-        return "";
     }
 
     /**
@@ -143,12 +314,22 @@ public class RocksDBUtil {
      */
     public void putBlock(Block block) {
         try {
-            blocksBucket.put(block.getHash(), SerializeUtil.serialize(block));
-            db.put(SerializeUtil.serialize(BLOCKS_BUCKET_KEY), SerializeUtil.serialize(blocksBucket));
+            db.put(key(BLOCKS_BUCKET_PREFIX + block.getHash()), encodeBlock(block));
         } catch (RocksDBException e) {
             throw new RuntimeException("Fail to put block ! ", e);
         }
     }
+
+    /**
+     * 在批量写入中保存区块
+     *
+     * @param batch
+     * @param block
+     */
+    public void putBlock(WriteBatch batch, Block block) {
+        batch.put(key(BLOCKS_BUCKET_PREFIX + block.getHash()), encodeBlock(block));
+    }
+
     /**
      * 查询区块
      *
@@ -156,76 +337,350 @@ public class RocksDBUtil {
      * @return
      */
     public Block getBlock(String blockHash) {
-        return (Block) SerializeUtil.deserialize(blocksBucket.get(blockHash));
+        try {
+            byte[] blockBytes = db.get(key(BLOCKS_BUCKET_PREFIX + blockHash));
+            if (blockBytes != null) {
+                return decodeBlock(blockBytes);
+            }
+            return null;
+        } catch (RocksDBException e) {
+            throw new RuntimeException("Fail to get block ! blockHash=" + blockHash, e);
+        }
     }
 
     /**
-     * 清空chainstate bucket
+     * 在批量写入中保存区块高度索引
+     *
+     * @param batch
+     * @param height    区块高度
+     * @param blockHash 区块Hash
      */
-    public void cleanChainStateBucket() {
+    public void putBlockHash(WriteBatch batch, long height, String blockHash) {
+        batch.put(key(BLOCK_HEIGHT_PREFIX + height), SerializeUtil.serialize(blockHash));
+    }
+
+    /**
+     * 依据区块高度查询区块Hash
+     *
+     * @param height 区块高度
+     * @return
+     */
+    public String getBlockHash(long height) {
+        try {
+            byte[] blockHashBytes = db.get(key(BLOCK_HEIGHT_PREFIX + height));
+            if (blockHashBytes != null) {
+                return (String) SerializeUtil.deserialize(blockHashBytes);
+            }
+            return null;
+        } catch (RocksDBException e) {
+            throw new RuntimeException("Fail to get block hash ! height=" + height, e);
+        }
+    }
+
+    /**
+     * 在批量写入中保存交易索引
+     *
+     * @param batch
+     * @param txId       交易ID
+     * @param txLocation 交易所在位置
+     */
+    public void putTxLocation(WriteBatch batch, String txId, TxLocation txLocation) {
+        batch.put(key(TX_INDEX_PREFIX + txId), SerializeUtil.serialize(txLocation));
+    }
+
+    /**
+     * 查询交易索引
+     *
+     * @param txId 交易ID
+     * @return
+     */
+    public TxLocation getTxLocation(String txId) {
+        try {
+            byte[] txLocationBytes = db.get(key(TX_INDEX_PREFIX + txId));
+            if (txLocationBytes != null) {
+                return (TxLocation) SerializeUtil.deserialize(txLocationBytes);
+            }
+            return null;
+        } catch (RocksDBException e) {
+            throw new RuntimeException("Fail to get tx location ! txId=" + txId, e);
+        }
+    }
+
+    /**
+     * 在批量写入中保存交易索引已同步到的区块Hash
+     *
+     * @param batch
+     * @param blockHash
+     */
+    public void putTxIndexTip(WriteBatch batch, String blockHash) {
+        batch.put(key(TX_INDEX_TIP_KEY), SerializeUtil.serialize(blockHash));
+        batch.remove(key(LEGACY_TX_INDEX_TIP_KEY));
+    }
+
+    /**
+     * 查询交易索引已同步到的区块Hash
+     *
+     * @return
+     */
+    public String getTxIndexTip() {
         try {
-            chainstateBucket.clear();
+            byte[] blockHashBytes = db.get(key(TX_INDEX_TIP_KEY));
+            if (blockHashBytes == null) {
+                blockHashBytes = db.get(key(LEGACY_TX_INDEX_TIP_KEY));
+            }
+            if (blockHashBytes != null) {
+                return (String) SerializeUtil.deserialize(blockHashBytes);
+            }
+            return "";
+        } catch (RocksDBException e) {
+            throw new RuntimeException("Fail to get tx index tip ! ", e);
+        }
+    }
+
+    /**
+     * 清空chainstate bucket，地址索引一并清空
+     * <p>
+     * 分批删除，每批最多 CLEAN_BATCH_SIZE 条记录，内存占用与数据量无关
+     */
+    public void cleanChainStateBucket() {
+        try (WriteOptions writeOptions = new WriteOptions()) {
+            for (String prefix : new String[]{CHAINSTATE_BUCKET_PREFIX, UTXO_PREFIX, ADDRESS_INDEX_PREFIX}) {
+                int[] removed;
+                do {
+                    removed = new int[]{0};
+                    try (WriteBatch batch = new WriteBatch()) {
+                        int[] counter = removed;
+                        scanPrefix(prefix, (key, value) -> {
+                            batch.remove(key(prefix + key));
+                            return ++counter[0] < CLEAN_BATCH_SIZE;
+                        });
+                        db.write(writeOptions, batch);
+                    }
+                } while (removed[0] == CLEAN_BATCH_SIZE);
+            }
         } catch (Exception e) {
-            LogUtil.d("Fail to clear chainstate bucket ! " +  e);
+            LogUtil.d("Fail to clear chainstate bucket ! " + e);
             throw new RuntimeException("Fail to clear chainstate bucket ! ", e);
         }
     }
 
     /**
-     * 保存UTXO数据
+     * 在批量写入中保存UTXO
+     *
+     * @param batch
+     * @param txId     交易ID
+     * @param index    交易输出下标
+     * @param txOutput 交易输出
+     */
+    public void putUTXO(WriteBatch batch, String txId, int index, TXOutput txOutput) {
+        batch.put(key(UTXO_PREFIX + txId + "_" + index), CodecUtil.encodeTXOutputRecord(txOutput));
+    }
+
+    /**
+     * 查询UTXO
      *
-     * @param key   交易ID
-     * @param utxos UTXOs
+     * @param txId  交易ID
+     * @param index 交易输出下标
+     * @return 不存在或已被花费时返回 null
      */
-    public void putUTXOs(String key, TXOutput[] utxos) {
+    public TXOutput getUTXO(String txId, int index) {
         try {
-            chainstateBucket.put(key, SerializeUtil.serialize(utxos));
-            db.put(SerializeUtil.serialize(CHAINSTATE_BUCKET_KEY), SerializeUtil.serialize(chainstateBucket));
+            byte[] utxoBytes = db.get(key(UTXO_PREFIX + txId + "_" + index));
+            if (utxoBytes != null) {
+                return decodeTXOutput(utxoBytes);
+            }
+            return null;
         } catch (Exception e) {
-            LogUtil.d("Fail to put UTXOs into chainstate bucket ! key=" + key + " " + e);
-            throw new RuntimeException("Fail to put UTXOs into chainstate bucket ! key=" + key, e);
+            LogUtil.d("Fail to get UTXO from chainstate bucket ! txId=" + txId + " index=" + index + " " + e);
+            throw new RuntimeException("Fail to get UTXO from chainstate bucket ! txId=" + txId + " index=" + index, e);
         }
     }
 
+    /**
+     * 在批量写入中删除UTXO
+     *
+     * @param batch
+     * @param txId  交易ID
+     * @param index 交易输出下标
+     */
+    public void deleteUTXO(WriteBatch batch, String txId, int index) {
+        batch.remove(key(UTXO_PREFIX + txId + "_" + index));
+    }
+
+    /**
+     * 在批量写入中保存UTXO已同步到的区块Hash
+     *
+     * @param batch
+     * @param blockHash
+     */
+    public void putUTXOTip(WriteBatch batch, String blockHash) {
+        batch.put(key(UTXO_TIP_KEY), SerializeUtil.serialize(blockHash));
+    }
 
     /**
-     * 查询UTXO数据
+     * 查询UTXO已同步到的区块Hash
      *
-     * @param key 交易ID
+     * @return
      */
-    public TXOutput[] getUTXOs(String key) {
-        byte[] utxosByte = chainstateBucket.get(key);
-        if (utxosByte != null) {
-            return (TXOutput[]) SerializeUtil.deserialize(utxosByte);
+    public String getUTXOTip() {
+        try {
+            byte[] blockHashBytes = db.get(key(UTXO_TIP_KEY));
+            if (blockHashBytes != null) {
+                return (String) SerializeUtil.deserialize(blockHashBytes);
+            }
+            return "";
+        } catch (RocksDBException e) {
+            throw new RuntimeException("Fail to get UTXO tip ! ", e);
         }
-        return null;
     }
 
+    /**
+     * 遍历所有的UTXO
+     *
+     * @param visitor 返回 false 时停止遍历
+     */
+    public void forEachUTXOs(UTXOVisitor visitor) {
+        scanOutpoints(UTXO_PREFIX, visitor);
+    }
 
     /**
-     * 删除 UTXO 数据
+     * 遍历旧版本按交易ID存储的UTXO数据
      *
-     * @param key 交易ID
+     * @param visitor 参数为交易ID以及对应的UTXOs，返回 false 时停止遍历
      */
-    public void deleteUTXOs(String key) {
+    public void forEachLegacyUTXOs(BiPredicate<String, TXOutput[]> visitor) {
+        scanPrefix(CHAINSTATE_BUCKET_PREFIX, (txId, value) -> visitor.test(txId, (TXOutput[]) SerializeUtil.deserialize(value)));
+    }
+
+    /**
+     * 在批量写入中删除旧版本按交易ID存储的UTXO数据
+     *
+     * @param batch
+     * @param txId  交易ID
+     */
+    public void deleteLegacyUTXOs(WriteBatch batch, String txId) {
+        batch.remove(key(CHAINSTATE_BUCKET_PREFIX + txId));
+    }
+
+    /**
+     * 在批量写入中保存地址索引
+     *
+     * @param batch
+     * @param pubKeyHash 钱包公钥Hash
+     * @param txId       交易ID
+     * @param index      交易输出下标
+     * @param txOutput   交易输出
+     */
+    public void putAddressUTXO(WriteBatch batch, String pubKeyHash, String txId, int index, TXOutput txOutput) {
+        batch.put(key(ADDRESS_INDEX_PREFIX + pubKeyHash + "_" + txId + "_" + index), CodecUtil.encodeTXOutputRecord(txOutput));
+    }
+
+    /**
+     * 在批量写入中删除地址索引
+     *
+     * @param batch
+     * @param pubKeyHash 钱包公钥Hash
+     * @param txId       交易ID
+     * @param index      交易输出下标
+     */
+    public void deleteAddressUTXO(WriteBatch batch, String pubKeyHash, String txId, int index) {
+        batch.remove(key(ADDRESS_INDEX_PREFIX + pubKeyHash + "_" + txId + "_" + index));
+    }
+
+    /**
+     * 在批量写入中标记地址索引已建立
+     *
+     * @param batch
+     */
+    public void putAddressIndexBuilt(WriteBatch batch) {
+        batch.put(key(ADDRESS_INDEX_BUILT_KEY), SerializeUtil.serialize(Boolean.TRUE));
+    }
+
+    /**
+     * 地址索引是否已建立
+     *
+     * @return
+     */
+    public boolean isAddressIndexBuilt() {
         try {
-            chainstateBucket.remove(key);
-            db.put(SerializeUtil.serialize(CHAINSTATE_BUCKET_KEY), SerializeUtil.serialize(chainstateBucket));
-        } catch (Exception e) {
-            LogUtil.d("Fail to delete UTXOs by key ! key=" + key + " " + e);
-            throw new RuntimeException("Fail to delete UTXOs by key ! key=" + key, e);
+            return db.get(key(ADDRESS_INDEX_BUILT_KEY)) != null;
+        } catch (RocksDBException e) {
+            throw new RuntimeException("Fail to get address index state ! ", e);
         }
     }
 
+    /**
+     * 遍历钱包地址对应的所有UTXO，只会读取该地址自己的记录
+     *
+     * @param pubKeyHash 钱包公钥Hash
+     * @param visitor    返回 false 时停止遍历
+     */
+    public void forEachAddressUTXOs(String pubKeyHash, UTXOVisitor visitor) {
+        scanOutpoints(ADDRESS_INDEX_PREFIX + pubKeyHash + "_", visitor);
+    }
+
+    /**
+     * 遍历 key 为 前缀 + 交易ID + "_" + 交易输出下标，value 为交易输出的数据
+     *
+     * @param prefix
+     * @param visitor
+     */
+    private void scanOutpoints(String prefix, UTXOVisitor visitor) {
+        scanPrefix(prefix, (outpoint, value) -> {
+            int separator = outpoint.lastIndexOf('_');
+            return visitor.visit(outpoint.substring(0, separator), Integer.parseInt(outpoint.substring(separator + 1)),
+                    decodeTXOutput(value));
+        });
+    }
+
+    /**
+     * 原子提交批量写入
+     *
+     * @param batch
+     */
+    public void writeBatch(WriteBatch batch) {
+        try {
+            db.write(batchWriteOptions, batch);
+            if (SYNC_WRITES && !DISABLE_WAL) {
+                syncCount.incrementAndGet();
+            }
+        } catch (RocksDBException e) {
+            throw new RuntimeException("Fail to write batch ! ", e);
+        }
+    }
+
+    /**
+     * 已执行的 fsync 提交次数
+     *
+     * @return
+     */
+    public long getSyncCount() {
+        return syncCount.get();
+    }
 
     /**
      * 关闭数据库
      */
     public void closeDB() {
         try {
+            batchWriteOptions.close();
             db.close();
         } catch (Exception e) {
             throw new RuntimeException("Fail to close db ! ", e);
         }
     }
+
+    /**
+     * UTXO遍历回调
+     */
+    @FunctionalInterface
+    public interface UTXOVisitor {
+        /**
+         * @param txId     交易ID
+         * @param index    交易输出下标
+         * @param txOutput 交易输出
+         * @return 返回 false 时停止遍历
+         */
+        boolean visit(String txId, int index, TXOutput txOutput);
+    }
 }
@@ -1,13 +1,66 @@
 package blockchain.utils;
 
+import blockchain.block.Block;
+import blockchain.block.TxLocation;
+import blockchain.transaction.TXInput;
+import blockchain.transaction.TXOutpoint;
+import blockchain.transaction.TXOutput;
+import blockchain.transaction.Transaction;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.pool.KryoPool;
+
+import java.util.HashMap;
 
 /**
  * 序列化工具类
+ * <p>
+ * Kryo 实例通过对象池复用，输入输出缓冲区按线程复用。
+ * 常用的类预先注册，写入时只记录注册ID而不是完整类名；
+ * 未注册的类名依然可以解析，因此旧版本写入的数据可以继续读取
  */
 public class SerializeUtil {
+    /**
+     * 输出缓冲区初始大小
+     */
+    private static final int BUFFER_SIZE = 4096;
+    private static final byte[] EMPTY_BYTES = new byte[0];
+
+    /**
+     * 预先注册类的 Kryo 对象池，用于存储
+     */
+    private static final KryoPool REGISTERED_POOL = new KryoPool.Builder(SerializeUtil::newRegisteredKryo).softReferences().build();
+    /**
+     * 不注册任何类的 Kryo 对象池，写入完整类名，与旧版本的序列化结果逐字节一致，用于计算Hash
+     */
+    private static final KryoPool CLASS_NAME_POOL = new KryoPool.Builder(Kryo::new).softReferences().build();
+
+    private static final ThreadLocal<Output> OUTPUT = ThreadLocal.withInitial(() -> new Output(BUFFER_SIZE, -1));
+    private static final ThreadLocal<Input> INPUT = ThreadLocal.withInitial(Input::new);
+
+    /**
+     * 创建预先注册类的 Kryo 实例，注册ID一经使用不能修改
+     *
+     * @return
+     */
+    private static Kryo newRegisteredKryo() {
+        Kryo kryo = new Kryo();
+        kryo.setRegistrationRequired(false);
+        kryo.register(byte[].class, 20);
+        kryo.register(Block.class, 21);
+        kryo.register(Transaction.class, 22);
+        kryo.register(Transaction[].class, 23);
+        kryo.register(TXInput.class, 24);
+        kryo.register(TXInput[].class, 25);
+        kryo.register(TXOutput.class, 26);
+        kryo.register(TXOutput[].class, 27);
+        kryo.register(TxLocation.class, 28);
+        kryo.register(TXOutpoint.class, 29);
+        kryo.register(HashMap.class, 30);
+        return kryo;
+    }
+
     /**
      * 反序列化
      *
@@ -15,10 +68,15 @@ public class SerializeUtil {
      * @return
      */
     public static Object deserialize(byte[] bytes) {
-        Input input = new Input(bytes);
-        Object obj = new Kryo().readClassAndObject(input);
-        input.close();
-        return obj;
+        Kryo kryo = REGISTERED_POOL.borrow();
+        Input input = INPUT.get();
+        try {
+            input.setBuffer(bytes);
+            return kryo.readClassAndObject(input);
+        } finally {
+            input.setBuffer(EMPTY_BYTES);
+            REGISTERED_POOL.release(kryo);
+        }
     }
 
     /**
@@ -28,10 +86,28 @@ public class SerializeUtil {
      * @return
      */
     public static byte[] serialize(Object object) {
-        Output output = new Output(4096, -1);
-        new Kryo().writeClassAndObject(output, object);
-        byte[] bytes = output.toBytes();
-        output.close();
-        return bytes;
+        return serialize(REGISTERED_POOL, object);
+    }
+
+    /**
+     * 以完整类名的方式序列化，结果与旧版本一致，保证交易Hash不变
+     *
+     * @param object 需要序列化的对象
+     * @return
+     */
+    public static byte[] serializeWithClassNames(Object object) {
+        return serialize(CLASS_NAME_POOL, object);
+    }
+
+    private static byte[] serialize(KryoPool pool, Object object) {
+        Kryo kryo = pool.borrow();
+        Output output = OUTPUT.get();
+        try {
+            output.clear();
+            kryo.writeClassAndObject(output, object);
+            return output.toBytes();
+        } finally {
+            pool.release(kryo);
+        }
     }
 }
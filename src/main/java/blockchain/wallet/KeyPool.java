@@ -0,0 +1,180 @@
+package blockchain.wallet;
+
+import blockchain.utils.LogUtil;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 预生成的密钥池
+ * <p>
+ * 启动后在后台并行生成 -Dharmony.keypool.size（默认 100）个钱包，剩余数量低于
+ * -Dharmony.keypool.low（默认为容量的四分之一）时补充。池中的钱包只保存在内存中，
+ * 取出后才由 WalletUtil 写入钱包文件；池中数量不足时由调用线程并行生成不足的部分
+ */
+public class KeyPool {
+    private static final int SIZE = Math.max(1, Integer.parseInt(System.getProperty("harmony.keypool.size", "100")));
+    private static final int LOW_WATER = Math.min(SIZE, Math.max(1, Integer.parseInt(
+            System.getProperty("harmony.keypool.low", String.valueOf(SIZE / 4)))));
+    private static final int THREADS = Math.max(1, Integer.parseInt(System.getProperty("harmony.keypool.threads",
+            String.valueOf(Runtime.getRuntime().availableProcessors()))));
+
+    private volatile static KeyPool instance;
+
+    public static KeyPool getInstance() {
+        if (instance == null) {
+            synchronized (KeyPool.class) {
+                if (instance == null) {
+                    instance = new KeyPool();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS, new KeyPoolThreadFactory());
+    private final ConcurrentLinkedQueue<Wallet> readyWallets = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger readyCount = new AtomicInteger();
+    /**
+     * 是否正在后台补充
+     */
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    /**
+     * 是否已启动后台补充，一次性的命令行不启动
+     */
+    private volatile boolean started;
+
+    private KeyPool() {
+    }
+
+    /**
+     * 启动后台补充，填满密钥池
+     */
+    public void start() {
+        this.started = true;
+        this.refillIfNeeded();
+    }
+
+    /**
+     * 池中可用的钱包数量
+     *
+     * @return
+     */
+    public int size() {
+        return this.readyCount.get();
+    }
+
+    /**
+     * 取出钱包，池中数量不足时并行生成不足的部分
+     *
+     * @param count 数量
+     * @return
+     */
+    public List<Wallet> take(int count) throws Exception {
+        List<Wallet> wallets = Lists.newArrayListWithCapacity(count);
+        while (wallets.size() < count) {
+            Wallet wallet = this.readyWallets.poll();
+            if (wallet == null) {
+                break;
+            }
+            this.readyCount.decrementAndGet();
+            wallets.add(wallet);
+        }
+        if (wallets.size() < count) {
+            wallets.addAll(this.generate(count - wallets.size()));
+        }
+        this.refillIfNeeded();
+        return wallets;
+    }
+
+    /**
+     * 由生成线程并行生成钱包，等待全部完成
+     *
+     * @param count 数量
+     * @return
+     */
+    private List<Wallet> generate(int count) throws Exception {
+        List<Callable<List<Wallet>>> chunks = Lists.newArrayList();
+        int chunkSize = (count + THREADS - 1) / THREADS;
+        for (int from = 0; from < count; from += chunkSize) {
+            int size = Math.min(chunkSize, count - from);
+            chunks.add(() -> newWallets(size));
+        }
+        List<Wallet> wallets = Lists.newArrayListWithCapacity(count);
+        for (Future<List<Wallet>> future : this.executor.invokeAll(chunks)) {
+            try {
+                wallets.addAll(future.get());
+            } catch (ExecutionException e) {
+                throw new Exception("ERROR: Fail to generate wallets ! ", e.getCause());
+            }
+        }
+        return wallets;
+    }
+
+    /**
+     * 数量低于下限时在后台补充到容量上限
+     */
+    private void refillIfNeeded() {
+        if (!this.started || this.readyCount.get() >= LOW_WATER || !this.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        int count = SIZE - this.readyCount.get();
+        if (count <= 0) {
+            this.refilling.set(false);
+            return;
+        }
+        long startTime = System.nanoTime();
+        int chunkSize = (count + THREADS - 1) / THREADS;
+        AtomicInteger pendingChunks = new AtomicInteger((count + chunkSize - 1) / chunkSize);
+        for (int from = 0; from < count; from += chunkSize) {
+            int size = Math.min(chunkSize, count - from);
+            this.executor.execute(() -> {
+                try {
+                    for (int i = 0; i < size; i++) {
+                        this.readyWallets.add(new Wallet());
+                        this.readyCount.incrementAndGet();
+                    }
+                } finally {
+                    if (pendingChunks.decrementAndGet() == 0) {
+                        LogUtil.d("Key pool refilled ! keys:" + count + " elapsed time(ms):"
+                                + (System.nanoTime() - startTime) / 1000000f + " ready:" + this.readyCount.get());
+                        this.refilling.set(false);
+                        // 补充期间可能又被取走了大量钱包
+                        this.refillIfNeeded();
+                    }
+                }
+            });
+        }
+    }
+
+    private static List<Wallet> newWallets(int count) {
+        List<Wallet> wallets = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            wallets.add(new Wallet());
+        }
+        return wallets;
+    }
+
+    /**
+     * 密钥生成线程工厂
+     */
+    private static class KeyPoolThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "key-pool-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
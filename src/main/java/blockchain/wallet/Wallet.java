@@ -2,20 +2,15 @@ package blockchain.wallet;
 
 import blockchain.utils.Base58Check;
 import blockchain.utils.BtcAddressUtil;
+import blockchain.utils.CryptoContext;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import org.bouncycastle.jcajce.provider.asymmetric.ec.BCECPrivateKey;
 import org.bouncycastle.jcajce.provider.asymmetric.ec.BCECPublicKey;
-import org.bouncycastle.jce.ECNamedCurveTable;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
-import org.bouncycastle.jce.spec.ECParameterSpec;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Serializable;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.SecureRandom;
-import java.security.Security;
 
 /**
  * 钱包
@@ -23,6 +18,12 @@ import java.security.Security;
 @Data
 @AllArgsConstructor
 public class Wallet implements Serializable {
+
+    /**
+     * 与之前按类结构计算出的默认值一致，已保存的钱包文件和日志仍可读取
+     */
+    private static final long serialVersionUID = -7612201489092153934L;
+
     // 校验码长度
     private static final int ADDRESS_CHECKSUM_LEN = 4;
     /**
@@ -63,15 +64,8 @@ public class Wallet implements Serializable {
      * @throws Exception
      */
     private KeyPair newECKeyPair() throws Exception {
-        // 注册 BC Provider
-        Security.addProvider(new BouncyCastleProvider());
-        // 创建椭圆曲线算法的密钥对生成器，算法为 ECDSA
-        KeyPairGenerator g = KeyPairGenerator.getInstance("ECDSA", BouncyCastleProvider.PROVIDER_NAME);
-        // 椭圆曲线（EC）域参数设定
-        // bitcoin 为什么会选择 secp256k1，详见：https://bitcointalk.org/index.php?topic=151120.0
-        ECParameterSpec ecSpec = ECNamedCurveTable.getParameterSpec("secp256k1");
-        g.initialize(ecSpec, new SecureRandom());
-        return g.generateKeyPair();
+        // 椭圆曲线（EC）域参数为 secp256k1，密钥对生成器由当前线程的加密上下文复用
+        return CryptoContext.get().generateKeyPair();
     }
 
     /**
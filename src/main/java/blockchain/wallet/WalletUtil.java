@@ -1,7 +1,9 @@
 package blockchain.wallet;
 
 import blockchain.utils.Base58Check;
+import blockchain.utils.LogUtil;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import lombok.AllArgsConstructor;
 import lombok.Cleanup;
 import lombok.Data;
@@ -13,11 +15,25 @@ import javax.crypto.CipherOutputStream;
 import javax.crypto.SealedObject;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * 钱包工具类
+ * <p>
+ * 解密后的钱包常驻内存，钱包文件只在启动时加载一次。新建的钱包加密后追加到日志文件，
+ * 每条记录带有长度和校验和，写入后 fsync；加载时遇到不完整或损坏的记录（写入中途崩溃）会截断丢弃。
+ * 日志记录数达到 -Dharmony.wallet.compact.records（默认 1000）时，将全部钱包写入新的钱包文件并清空日志，
+ * 新的钱包文件先写入临时文件再原子替换
  */
 public class WalletUtil {
     /**
@@ -44,6 +60,19 @@ public class WalletUtil {
      * 钱包文件
      */
     private final static String WALLET_FILE = "wallet.dat";
+    /**
+     * 钱包日志文件，保存上次压缩之后新建的钱包
+     */
+    private final static String WALLET_JOURNAL_FILE = WALLET_FILE + ".journal";
+    /**
+     * 压缩时写入的临时钱包文件
+     */
+    private final static String WALLET_TEMP_FILE = WALLET_FILE + ".tmp";
+    /**
+     * 日志记录数达到多少时压缩
+     */
+    private static final int COMPACT_RECORDS = Math.max(1, Integer.parseInt(
+            System.getProperty("harmony.wallet.compact.records", "1000")));
     /**
      * 加密算法
      */
@@ -54,14 +83,32 @@ public class WalletUtil {
     private static final byte[] CIPHER_TEXT = "2oF@5sC%DNf32y!TmiZi!tG9W5rLaniD".getBytes();
 
     /**
-     * 初始化钱包文件
+     * 内存中的钱包数据
+     */
+    private Wallets wallets;
+    /**
+     * 日志文件的输出流，追加写入
+     */
+    private FileOutputStream journalOutput;
+    /**
+     * 日志文件中的记录数
+     */
+    private int journalRecords;
+
+    /**
+     * 初始化钱包文件，加载钱包文件以及日志中的钱包
      */
     private void initWalletFile() {
         File file = new File(WALLET_FILE);
         if (!file.exists()) {
-            this.saveToDisk(new Wallets());
+            this.wallets = new Wallets();
+            this.saveToDisk(this.wallets);
         } else {
-            this.loadFromDisk();
+            this.wallets = this.loadFromDisk();
+        }
+        this.replayJournal();
+        if (this.journalRecords >= COMPACT_RECORDS) {
+            this.compact();
         }
     }
 
@@ -71,9 +118,8 @@ public class WalletUtil {
      * @return
      * @throws Exception
      */
-    public Set<String> getAddresses() throws Exception {
-        Wallets wallets = this.loadFromDisk();
-        return wallets.getAddresses();
+    public synchronized Set<String> getAddresses() throws Exception {
+        return Sets.newLinkedHashSet(this.wallets.getAddresses());
     }
 
     /**
@@ -82,9 +128,8 @@ public class WalletUtil {
      * @param address 钱包地址
      * @return
      */
-    public Wallet getWallet(String address) throws Exception {
-        Wallets wallets = this.loadFromDisk();
-        return wallets.getWallet(address);
+    public synchronized Wallet getWallet(String address) throws Exception {
+        return this.wallets.getWallet(address);
     }
 
     /**
@@ -92,34 +137,157 @@ public class WalletUtil {
      *
      * @return
      */
-    public Wallet createWallet() {
-        Wallet wallet = new Wallet();
-        Wallets wallets = this.loadFromDisk();
-        wallets.addWallet(wallet);
-        this.saveToDisk(wallets);
-        return wallet;
+    public Wallet createWallet() throws Exception {
+        return this.createWallets(1).get(0);
+    }
+
+    /**
+     * 批量创建钱包，钱包取自密钥池，一次写入日志
+     *
+     * @param count 数量
+     * @return
+     */
+    public List<Wallet> createWallets(int count) throws Exception {
+        // 生成密钥时不持有锁
+        List<Wallet> newWallets = KeyPool.getInstance().take(count);
+        this.addWallets(newWallets);
+        return newWallets;
+    }
+
+    /**
+     * 保存新的钱包
+     *
+     * @param newWallets
+     */
+    private synchronized void addWallets(List<Wallet> newWallets) {
+        this.appendToJournal(newWallets);
+        for (Wallet wallet : newWallets) {
+            this.wallets.addWallet(wallet);
+        }
+        if (this.journalRecords >= COMPACT_RECORDS) {
+            this.compact();
+        }
+    }
+
+    /**
+     * 将钱包追加到日志文件，全部写入后 fsync 一次
+     *
+     * @param newWallets
+     */
+    private void appendToJournal(Collection<Wallet> newWallets) {
+        try {
+            if (this.journalOutput == null) {
+                this.journalOutput = new FileOutputStream(WALLET_JOURNAL_FILE, true);
+            }
+            Cipher cipher = newCipher(Cipher.ENCRYPT_MODE);
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            DataOutputStream recordStream = new DataOutputStream(records);
+            for (Wallet wallet : newWallets) {
+                byte[] encrypted = cipher.doFinal(serialize(wallet));
+                recordStream.writeInt(encrypted.length);
+                recordStream.writeLong(checksum(encrypted));
+                recordStream.write(encrypted);
+            }
+            this.journalOutput.write(records.toByteArray());
+            this.journalOutput.getFD().sync();
+            this.journalRecords += newWallets.size();
+        } catch (Exception e) {
+            throw new RuntimeException("Fail to append wallet to journal ! ", e);
+        }
+    }
+
+    /**
+     * 加载日志文件中的钱包，截断末尾不完整或损坏的记录
+     */
+    private void replayJournal() {
+        File file = new File(WALLET_JOURNAL_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        long validLength = 0;
+        try {
+            Cipher cipher = newCipher(Cipher.DECRYPT_MODE);
+            try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (validLength < file.length()) {
+                    int length = inputStream.readInt();
+                    long checksum = inputStream.readLong();
+                    if (length <= 0 || length > file.length() - validLength) {
+                        break;
+                    }
+                    byte[] encrypted = new byte[length];
+                    inputStream.readFully(encrypted);
+                    if (checksum(encrypted) != checksum) {
+                        break;
+                    }
+                    this.wallets.addWallet((Wallet) deserialize(cipher.doFinal(encrypted)));
+                    this.journalRecords++;
+                    validLength += 12 + length;
+                }
+            } catch (EOFException e) {
+                // 最后一条记录没有写完整
+            }
+            if (validLength < file.length()) {
+                LogUtil.d("Truncate wallet journal ! valid length:" + validLength + " file length:" + file.length());
+                try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+                    journal.setLength(validLength);
+                    journal.getFD().sync();
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Fail to load wallet journal from disk ! ", e);
+        }
+    }
+
+    /**
+     * 压缩：将内存中的全部钱包写入钱包文件，然后清空日志
+     * <p>
+     * 钱包文件替换后、日志清空前崩溃的话，下次加载时日志中的钱包会重复加入，结果不变
+     */
+    private void compact() {
+        this.saveToDisk(this.wallets);
+        try {
+            if (this.journalOutput != null) {
+                this.journalOutput.close();
+            }
+            this.journalOutput = new FileOutputStream(WALLET_JOURNAL_FILE, false);
+            this.journalOutput.getFD().sync();
+            LogUtil.d("Compact wallet journal ! records:" + this.journalRecords + " wallets:" + this.wallets.getWalletMap().size());
+            this.journalRecords = 0;
+        } catch (IOException e) {
+            throw new RuntimeException("Fail to compact wallet journal ! ", e);
+        }
     }
 
     /**
      * 保存钱包数据
+     * <p>
+     * 依次：关闭加密流（写出最后一个加密块及填充）、写入临时文件并 fsync、原子替换钱包文件、fsync 所在目录，
+     * 方法返回时新的钱包文件已经完整落盘，调用方才可以清空日志
      */
     private void saveToDisk(Wallets wallets) {
         try {
             if (wallets == null) {
                 throw new Exception("ERROR: Fail to save wallet to file ! data is null ! ");
             }
-            SecretKeySpec sks = new SecretKeySpec(CIPHER_TEXT, ALGORITHM);
-            // Create cipher
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            cipher.init(Cipher.ENCRYPT_MODE, sks);
+            Cipher cipher = newCipher(Cipher.ENCRYPT_MODE);
             SealedObject sealedObject = new SealedObject(wallets, cipher);
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
             // Wrap the output stream
-            @Cleanup CipherOutputStream cos = new CipherOutputStream(
-                    new BufferedOutputStream(new FileOutputStream(WALLET_FILE)), cipher);
-            @Cleanup ObjectOutputStream outputStream = new ObjectOutputStream(cos);
-            outputStream.writeObject(sealedObject);
+            try (ObjectOutputStream outputStream = new ObjectOutputStream(new CipherOutputStream(encrypted, cipher))) {
+                outputStream.writeObject(sealedObject);
+            }
+            try (FileOutputStream fileOutputStream = new FileOutputStream(WALLET_TEMP_FILE)) {
+                fileOutputStream.write(encrypted.toByteArray());
+                fileOutputStream.getFD().sync();
+            }
+            Path walletPath = Paths.get(WALLET_FILE).toAbsolutePath();
+            Files.move(Paths.get(WALLET_TEMP_FILE), walletPath,
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            try (FileChannel directory = FileChannel.open(walletPath.getParent(), StandardOpenOption.READ)) {
+                directory.force(true);
+            }
         } catch (Exception e) {
-            e.printStackTrace();
+            throw new RuntimeException("Fail to save wallet to file ! ", e);
         }
     }
 
@@ -128,9 +296,7 @@ public class WalletUtil {
      */
     private Wallets loadFromDisk() {
         try {
-            SecretKeySpec sks = new SecretKeySpec(CIPHER_TEXT, ALGORITHM);
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            cipher.init(Cipher.DECRYPT_MODE, sks);
+            Cipher cipher = newCipher(Cipher.DECRYPT_MODE);
             @Cleanup CipherInputStream cipherInputStream = new CipherInputStream(
                     new BufferedInputStream(new FileInputStream(WALLET_FILE)), cipher);
             @Cleanup ObjectInputStream inputStream = new ObjectInputStream(cipherInputStream);
@@ -142,6 +308,33 @@ public class WalletUtil {
         throw new RuntimeException("Fail to load wallet file from disk ! ");
     }
 
+    private static Cipher newCipher(int mode) throws Exception {
+        SecretKeySpec sks = new SecretKeySpec(CIPHER_TEXT, ALGORITHM);
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        cipher.init(mode, sks);
+        return cipher;
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes);
+        return crc32.getValue();
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream outputStream = new ObjectOutputStream(bytes)) {
+            outputStream.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws Exception {
+        try (ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return inputStream.readObject();
+        }
+    }
+
     /**
      * 钱包存储对象
      */
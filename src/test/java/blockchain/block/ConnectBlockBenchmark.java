@@ -0,0 +1,174 @@
+package blockchain.block;
+
+import blockchain.transaction.TXInput;
+import blockchain.transaction.TXOutput;
+import blockchain.transaction.Transaction;
+import blockchain.utils.RocksDBUtil;
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 区块连接的耗时以及每个区块的 fsync 次数
+ * <p>
+ * 每次调用连接一个新区块：一笔 coinbase 交易以及 txs 笔交易，每笔交易花费上一个区块 coinbase 的一个输出。
+ * 区块数据、最新区块Hash与索引在同一个 WriteBatch 中提交，UTXO 的变化写入 UTXOCache。
+ * 辅助计数 fsyncs / blocks 即每个区块的 fsync 次数；connectBlockNoSync 使用 -Dharmony.db.sync=false 对比同步写入的开销
+ * <p>
+ * 运行：mvn -P bench test-compile exec:exec -Djmh.args="ConnectBlockBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConnectBlockBenchmark {
+    private static final String GENESIS_ADDRESS = "1K1ZFF2J4om2NPf7x5QaXhUDs5sGPxYjaP";
+    private static final String DB_FILE = "blockchain_harmony.db";
+
+    @Param({"1", "100"})
+    public int txs;
+
+    private final Random random = new Random(20181017L);
+    private final byte[] pubKeyHash = new byte[20];
+    private BlockChain blockchain;
+    /**
+     * 上一个区块的 coinbase 交易，它的 txs 个输出由下一个区块花费
+     */
+    private Transaction prevCoinbase;
+    private Block nextBlock;
+
+    /**
+     * 每次迭代连接的区块数以及 fsync 次数
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long blocks;
+        public long fsyncs;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.blocks = 0;
+            this.fsyncs = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        deleteDB();
+        random.nextBytes(pubKeyHash);
+        blockchain = BlockChain.newBlockchain(GENESIS_ADDRESS);
+        prevCoinbase = this.newCoinbase(1);
+        blockchain.connectBlock(this.newBlock(prevCoinbase));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        RocksDBUtil.getInstance().closeDB();
+        deleteDB();
+    }
+
+    /**
+     * 区块在调用之外创建，只计算连接区块的耗时
+     */
+    @Setup(Level.Invocation)
+    public void prepareBlock() {
+        long height = blockchain.getBestHeight() + 1;
+        Transaction[] transactions = new Transaction[txs + 1];
+        Transaction coinbase = this.newCoinbase(height);
+        transactions[0] = coinbase;
+        for (int i = 0; i < txs; i++) {
+            Transaction tx = new Transaction(null,
+                    new TXInput[]{new TXInput(prevCoinbase.getTxId(), i, null, null)},
+                    new TXOutput[]{new TXOutput(10, pubKeyHash)});
+            tx.setTxId(tx.hash());
+            transactions[i + 1] = tx;
+        }
+        prevCoinbase = coinbase;
+        nextBlock = this.newBlock(transactions);
+    }
+
+    @Benchmark
+    public void connectBlock(Counters counters) {
+        this.connect(counters);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dharmony.db.sync=false")
+    public void connectBlockNoSync(Counters counters) {
+        this.connect(counters);
+    }
+
+    private void connect(Counters counters) {
+        long syncCount = RocksDBUtil.getInstance().getSyncCount();
+        blockchain.connectBlock(nextBlock);
+        counters.blocks++;
+        counters.fsyncs += RocksDBUtil.getInstance().getSyncCount() - syncCount;
+    }
+
+    /**
+     * coinbase 交易，有 txs 个输出
+     *
+     * @param height 区块高度，使每个 coinbase 交易的ID不同
+     * @return
+     */
+    private Transaction newCoinbase(long height) {
+        TXOutput[] outputs = new TXOutput[txs];
+        for (int i = 0; i < txs; i++) {
+            outputs[i] = new TXOutput(10, pubKeyHash);
+        }
+        Transaction coinbase = new Transaction(null,
+                new TXInput[]{new TXInput(new byte[]{}, -1, null, ("coinbase " + height).getBytes())}, outputs);
+        coinbase.setTxId(coinbase.hash());
+        return coinbase;
+    }
+
+    /**
+     * 不进行工作量证明，使用随机的区块Hash
+     *
+     * @param transactions
+     * @return
+     */
+    private Block newBlock(Transaction... transactions) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        Block block = new Block(System.currentTimeMillis(), transactions, blockchain.getLastBlockHash(),
+                Hex.encodeHexString(hash));
+        block.setHeight(blockchain.getBestHeight() + 1);
+        return block;
+    }
+
+    private static void deleteDB() throws IOException {
+        Path path = Paths.get(DB_FILE);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package blockchain.block;
+
+import blockchain.transaction.TXInput;
+import blockchain.transaction.TXOutput;
+import blockchain.transaction.Transaction;
+import blockchain.utils.BtcAddressUtil;
+import blockchain.utils.RocksDBUtil;
+import blockchain.wallet.Wallet;
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 交易签名与验证的耗时随区块链高度的变化
+ * <p>
+ * 被花费的交易位于高度为 1 的区块中，其上还有 height - 1 个区块，交易有 inputs 个交易输入。
+ * sign / verify 使用交易索引，signChainScan / verifyChainScan 使用 -Dharmony.txindex=false 从最新区块遍历区块链。
+ * 验证时关闭签名验证缓存（-Dharmony.sigcache.entries=0），每次都进行完整的签名验证
+ * <p>
+ * 运行：mvn -P bench test-compile exec:exec -Djmh.args="TxIndexBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dharmony.db.sync=false", "-Dharmony.sigcache.entries=0"})
+@State(Scope.Benchmark)
+public class TxIndexBenchmark {
+    private static final String GENESIS_ADDRESS = "1K1ZFF2J4om2NPf7x5QaXhUDs5sGPxYjaP";
+    private static final String DB_FILE = "blockchain_harmony.db";
+
+    @Param({"10", "100", "1000"})
+    public int height;
+
+    @Param({"1", "10"})
+    public int inputs;
+
+    private final Random random = new Random(20181017L);
+    private BlockChain blockchain;
+    private Wallet wallet;
+    private Transaction tx;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        deleteDB();
+        blockchain = BlockChain.newBlockchain(GENESIS_ADDRESS);
+        wallet = new Wallet();
+        byte[] pubKeyHash = BtcAddressUtil.ripeMD160Hash(wallet.getPublicKey());
+
+        TXOutput[] fundingOutputs = new TXOutput[inputs];
+        for (int i = 0; i < inputs; i++) {
+            fundingOutputs[i] = new TXOutput(10, pubKeyHash);
+        }
+        Transaction funding = this.newCoinbase(1, fundingOutputs);
+        this.connect(funding);
+        byte[] otherPubKeyHash = new byte[20];
+        random.nextBytes(otherPubKeyHash);
+        for (int h = 2; h <= height; h++) {
+            this.connect(this.newCoinbase(h, new TXOutput[]{new TXOutput(10, otherPubKeyHash)}));
+        }
+
+        TXInput[] txInputs = new TXInput[inputs];
+        for (int i = 0; i < inputs; i++) {
+            txInputs[i] = new TXInput(funding.getTxId(), i, null, wallet.getPublicKey());
+        }
+        tx = new Transaction(null, txInputs, new TXOutput[]{new TXOutput(10 * inputs, otherPubKeyHash)});
+        tx.setTxId(tx.hash());
+        blockchain.signTransaction(tx, wallet.getPrivateKey());
+        if (!blockchain.verifyTransactions(tx)) {
+            throw new IllegalStateException("signed transaction does not verify");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        RocksDBUtil.getInstance().closeDB();
+        deleteDB();
+    }
+
+    @Benchmark
+    public Transaction sign() throws Exception {
+        blockchain.signTransaction(tx, wallet.getPrivateKey());
+        return tx;
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Dharmony.db.sync=false", "-Dharmony.sigcache.entries=0", "-Dharmony.txindex=false"})
+    public Transaction signChainScan() throws Exception {
+        blockchain.signTransaction(tx, wallet.getPrivateKey());
+        return tx;
+    }
+
+    @Benchmark
+    public boolean verify() throws Exception {
+        return blockchain.verifyTransactions(tx);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Dharmony.db.sync=false", "-Dharmony.sigcache.entries=0", "-Dharmony.txindex=false"})
+    public boolean verifyChainScan() throws Exception {
+        return blockchain.verifyTransactions(tx);
+    }
+
+    private Transaction newCoinbase(long height, TXOutput[] outputs) {
+        Transaction coinbase = new Transaction(null,
+                new TXInput[]{new TXInput(new byte[]{}, -1, null, ("coinbase " + height).getBytes())}, outputs);
+        coinbase.setTxId(coinbase.hash());
+        return coinbase;
+    }
+
+    /**
+     * 不进行工作量证明，使用随机的区块Hash
+     *
+     * @param coinbase
+     */
+    private void connect(Transaction coinbase) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        Block block = new Block(System.currentTimeMillis(), new Transaction[]{coinbase}, blockchain.getLastBlockHash(),
+                Hex.encodeHexString(hash));
+        block.setHeight(blockchain.getBestHeight() + 1);
+        blockchain.connectBlock(block);
+    }
+
+    private static void deleteDB() throws IOException {
+        Path path = Paths.get(DB_FILE);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package blockchain.pow;
+
+import blockchain.block.Block;
+import blockchain.transaction.TXInput;
+import blockchain.transaction.TXOutput;
+import blockchain.transaction.Transaction;
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单线程挖矿：每次调用对一个新的时间戳运行 ProofOfWork.run()，直到找到满足难度目标的 nonce，难度固定为 TARGET_BITS
+ * <p>
+ * 主结果为每秒挖出的区块数，辅助计数 hashes 为每秒计算的 Hash 数（找到的 nonce + 1）。
+ * 区块中有 txs 笔交易，用于观察区块头构建的开销是否随交易数增长
+ * <p>
+ * 运行：mvn -P bench test-compile exec:exec -Djmh.args="ProofOfWorkBenchmark"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dharmony.pow.threads=1")
+@State(Scope.Thread)
+public class ProofOfWorkBenchmark {
+
+    @Param({"1", "10"})
+    public int txs;
+
+    private Block block;
+
+    /**
+     * 已计算的 Hash 数
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long hashes;
+    }
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(20181017L);
+        Transaction[] transactions = new Transaction[txs];
+        for (int i = 0; i < txs; i++) {
+            byte[] prevTxId = new byte[32];
+            byte[] pubKeyHash = new byte[20];
+            random.nextBytes(prevTxId);
+            random.nextBytes(pubKeyHash);
+            transactions[i] = new Transaction(null, new TXInput[]{new TXInput(prevTxId, 0, new byte[71], new byte[65])},
+                    new TXOutput[]{new TXOutput(10, pubKeyHash)});
+            transactions[i].setTxId(transactions[i].hash());
+        }
+        byte[] prevBlockHash = new byte[32];
+        random.nextBytes(prevBlockHash);
+        block = new Block(System.currentTimeMillis(), transactions, Hex.encodeHexString(prevBlockHash), null);
+        block.setTargetBits(ProofOfWork.TARGET_BITS);
+    }
+
+    @Benchmark
+    public PowResult run(Counters counters) {
+        block.setTimestamp(block.getTimestamp() + 1);
+        PowResult powResult = ProofOfWork.newProofOfWork(block).run();
+        counters.hashes += powResult.getNonce() + 1;
+        return powResult;
+    }
+}
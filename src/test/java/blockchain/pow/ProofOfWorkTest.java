@@ -0,0 +1,79 @@
+package blockchain.pow;
+
+import blockchain.block.Block;
+import blockchain.transaction.Transaction;
+import blockchain.utils.ByteUtil;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 难度目标位取值边界上的工作量证明
+ */
+public class ProofOfWorkTest {
+    private static final String ADDRESS = "1K1ZFF2J4om2NPf7x5QaXhUDs5sGPxYjaP";
+
+    private static BigInteger target(int targetBits) {
+        return BigInteger.ONE.shiftLeft(256 - targetBits);
+    }
+
+    @Test
+    public void targetBytesOfMinTargetBits() {
+        byte[] expected = new byte[32];
+        expected[0] = (byte) 0x80;
+        assertArrayEquals(expected, ProofOfWork.targetBytes(target(ProofOfWork.MIN_TARGET_BITS)));
+    }
+
+    @Test
+    public void targetBytesOfMaxTargetBits() {
+        byte[] expected = new byte[32];
+        expected[31] = 0x02;
+        assertArrayEquals(expected, ProofOfWork.targetBytes(target(ProofOfWork.MAX_TARGET_BITS)));
+    }
+
+    @Test
+    public void targetBytesOfDefaultTargetBits() {
+        byte[] expected = new byte[32];
+        expected[1] = 0x01;
+        assertArrayEquals(expected, ProofOfWork.targetBytes(target(ProofOfWork.TARGET_BITS)));
+    }
+
+    @Test
+    public void mineAtMinTargetBits() {
+        Block block = Block.newBlock(new Transaction[]{Transaction.newCoinbaseTX(ADDRESS, "")},
+                ByteUtil.ZERO_HASH, 1, ProofOfWork.MIN_TARGET_BITS);
+        assertEquals(ProofOfWork.MIN_TARGET_BITS, block.getTargetBits());
+        assertTrue(ProofOfWork.newProofOfWork(block).validate());
+    }
+
+    @Test
+    public void validateAtMaxTargetBits() {
+        Block block = new Block(System.currentTimeMillis(), new Transaction[]{Transaction.newCoinbaseTX(ADDRESS, "")},
+                ByteUtil.ZERO_HASH, null);
+        block.setTargetBits(ProofOfWork.MAX_TARGET_BITS);
+        // 目标值为 2，任意 nonce 几乎不可能满足
+        assertFalse(ProofOfWork.newProofOfWork(block).validate());
+    }
+
+    @Test
+    public void validateRejectsOutOfRangeTargetBits() {
+        Block block = Block.newBlock(new Transaction[]{Transaction.newCoinbaseTX(ADDRESS, "")},
+                ByteUtil.ZERO_HASH, 1, ProofOfWork.MIN_TARGET_BITS);
+        block.setTargetBits(ProofOfWork.MIN_TARGET_BITS - 1);
+        assertFalse(ProofOfWork.newProofOfWork(block).validate());
+    }
+
+    @Test
+    public void retargetClampsToRange() {
+        assertEquals(ProofOfWork.MIN_TARGET_BITS, ProofOfWork.retarget(ProofOfWork.MIN_TARGET_BITS, 1000000, 1));
+        assertEquals(ProofOfWork.MAX_TARGET_BITS, ProofOfWork.retarget(ProofOfWork.MAX_TARGET_BITS, 1, 1000000));
+        assertEquals(ProofOfWork.TARGET_BITS + 2, ProofOfWork.retarget(ProofOfWork.TARGET_BITS, 1, 1000000));
+        assertEquals(ProofOfWork.TARGET_BITS - 2, ProofOfWork.retarget(ProofOfWork.TARGET_BITS, 1000000, 1));
+        assertEquals(ProofOfWork.TARGET_BITS, ProofOfWork.retarget(ProofOfWork.TARGET_BITS, 1000, 1000));
+    }
+}
@@ -0,0 +1,106 @@
+package blockchain.transaction;
+
+import blockchain.utils.ByteUtil;
+import com.google.common.collect.Lists;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 默克尔树的构建耗时：按层存放在同一个字节数组中的实现与旧的链式节点实现对比
+ * <p>
+ * buildLegacy 复现旧实现：每个节点一个 Node 对象，逐层顺序计算，子节点Hash通过 ByteUtil.merge 拼接。
+ * 两者的根节点Hash在初始化时比较，必须一致
+ * <p>
+ * 运行：mvn -P bench test-compile exec:exec -Djmh.args="MerkleTreeBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MerkleTreeBenchmark {
+
+    @Param({"1", "100", "10000", "100000"})
+    public int leaves;
+
+    private byte[][] leafHashes;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(20181017L);
+        leafHashes = new byte[leaves][MerkleTree.HASH_LENGTH];
+        for (byte[] leafHash : leafHashes) {
+            random.nextBytes(leafHash);
+        }
+        if (!Arrays.equals(this.build(), this.buildLegacy())) {
+            throw new IllegalStateException("merkle root differs from the legacy implementation");
+        }
+    }
+
+    @Benchmark
+    public byte[] build() {
+        return new MerkleTree(leafHashes).getRootHash();
+    }
+
+    @Benchmark
+    public byte[] buildLegacy() {
+        List<Node> parents = Lists.newArrayListWithCapacity(leafHashes.length / 2);
+        for (int i = 0; i < leafHashes.length - 1; i += 2) {
+            parents.add(internalNode(new Node(leafHashes[i], null, null), new Node(leafHashes[i + 1], null, null)));
+        }
+        if (leafHashes.length % 2 != 0) {
+            // 奇数个叶子，复制最后一个叶子
+            Node leaf = new Node(leafHashes[leafHashes.length - 1], null, null);
+            parents.add(internalNode(leaf, leaf));
+        }
+        while (parents.size() > 1) {
+            List<Node> children = parents;
+            parents = Lists.newArrayListWithCapacity(children.size() / 2);
+            for (int i = 0; i < children.size() - 1; i += 2) {
+                parents.add(internalNode(children.get(i), children.get(i + 1)));
+            }
+            if (children.size() % 2 != 0) {
+                parents.add(internalNode(children.get(children.size() - 1), null));
+            }
+        }
+        return parents.get(0).hash;
+    }
+
+    private static Node internalNode(Node left, Node right) {
+        if (right == null) {
+            return new Node(left.hash, left, null);
+        }
+        return new Node(DigestUtils.sha256(ByteUtil.merge(left.hash, right.hash)), left, right);
+    }
+
+    /**
+     * 旧实现的树节点
+     */
+    private static class Node {
+        private final byte[] hash;
+        private final Node left;
+        private final Node right;
+
+        Node(byte[] hash, Node left, Node right) {
+            this.hash = hash;
+            this.left = left;
+            this.right = right;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package blockchain.transaction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 计算交易所有交易输入的签名数据的耗时
+ * <p>
+ * sighashes 只对置空后的交易编码一次，每个交易输入只替换自己的片段；
+ * sighashesLegacy 复现旧实现：对每个交易输入修改交易副本后重新计算整个副本的Hash。
+ * 两者的结果在初始化时比较，必须一致
+ * <p>
+ * 运行：mvn -P bench test-compile exec:exec -Djmh.args="SighashBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SighashBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int inputs;
+
+    private Transaction tx;
+    private byte[][] prevPubKeyHashes;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(20181017L);
+        TXInput[] txInputs = new TXInput[inputs];
+        prevPubKeyHashes = new byte[inputs][20];
+        for (int i = 0; i < inputs; i++) {
+            byte[] prevTxId = new byte[32];
+            byte[] signature = new byte[71];
+            byte[] pubKey = new byte[65];
+            random.nextBytes(prevTxId);
+            random.nextBytes(signature);
+            random.nextBytes(pubKey);
+            random.nextBytes(prevPubKeyHashes[i]);
+            txInputs[i] = new TXInput(prevTxId, i, signature, pubKey);
+        }
+        byte[] pubKeyHash = new byte[20];
+        random.nextBytes(pubKeyHash);
+        tx = new Transaction(null, txInputs, new TXOutput[]{new TXOutput(10, pubKeyHash), new TXOutput(5, prevPubKeyHashes[0])});
+        tx.setTxId(tx.hash());
+        if (!Arrays.deepEquals(this.sighashes(), this.sighashesLegacy())) {
+            throw new IllegalStateException("sighashes differ from the legacy implementation");
+        }
+    }
+
+    @Benchmark
+    public byte[][] sighashes() {
+        return SighashCalculator.sighashes(tx, prevPubKeyHashes);
+    }
+
+    @Benchmark
+    public byte[][] sighashesLegacy() {
+        Transaction txCopy = tx.trimmedCopy();
+        byte[][] sighashes = new byte[inputs][];
+        for (int i = 0; i < inputs; i++) {
+            TXInput txInputCopy = txCopy.getInputs()[i];
+            txInputCopy.setSignature(null);
+            txInputCopy.setPubKey(prevPubKeyHashes[i]);
+            txCopy.setTxId(txCopy.hash());
+            txInputCopy.setPubKey(null);
+            sighashes[i] = txCopy.getTxId();
+        }
+        return sighashes;
+    }
+}
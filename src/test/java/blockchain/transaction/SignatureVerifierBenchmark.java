@@ -0,0 +1,87 @@
+package blockchain.transaction;
+
+import blockchain.utils.CryptoContext;
+import blockchain.wallet.Wallet;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量签名验证的耗时与线程数的关系
+ * <p>
+ * 每次调用验证 SIGNATURES 个签名（来自 KEYS 个公钥），每秒验证的签名数 = SIGNATURES / 每次调用的耗时。
+ * verifyAll 的线程数为 1、2、4，分别在 -Dharmony.verify.threads 不同的 JVM 中运行。
+ * invalid 为 true 时第一个签名无效，用于观察发现无效签名后其余任务多快结束。
+ * 签名验证数据没有交易ID，不经过签名验证缓存
+ * <p>
+ * 运行：mvn -P bench test-compile exec:exec -Djmh.args="SignatureVerifierBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class SignatureVerifierBenchmark {
+    private static final int SIGNATURES = 2000;
+    private static final int KEYS = 100;
+
+    @Param({"false", "true"})
+    public boolean invalid;
+
+    private final List<SignatureCheck> checks = Lists.newArrayListWithCapacity(SIGNATURES);
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(20181017L);
+        List<Wallet> wallets = Lists.newArrayListWithCapacity(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            wallets.add(new Wallet());
+        }
+        for (int i = 0; i < SIGNATURES; i++) {
+            Wallet wallet = wallets.get(i % KEYS);
+            byte[] sighash = new byte[32];
+            random.nextBytes(sighash);
+            byte[] signature = CryptoContext.get().sign(wallet.getPrivateKey(), sighash);
+            checks.add(new SignatureCheck(null, i, wallet.getPublicKey(), sighash, signature));
+        }
+        if (invalid) {
+            byte[] sighash = checks.get(0).getSighash().clone();
+            sighash[0] ^= 1;
+            checks.get(0).setSighash(sighash);
+        }
+        if (SignatureVerifier.verifyAll(checks) == invalid) {
+            throw new IllegalStateException("unexpected verification result");
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dharmony.verify.threads=1")
+    public boolean threads1() {
+        return SignatureVerifier.verifyAll(checks);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dharmony.verify.threads=2")
+    public boolean threads2() {
+        return SignatureVerifier.verifyAll(checks);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dharmony.verify.threads=4")
+    public boolean threads4() {
+        return SignatureVerifier.verifyAll(checks);
+    }
+}
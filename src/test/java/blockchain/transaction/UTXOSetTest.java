@@ -0,0 +1,204 @@
+package blockchain.transaction;
+
+import blockchain.block.Block;
+import blockchain.block.BlockChain;
+import blockchain.utils.RocksDBUtil;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 按 (交易ID, 交易输出下标) 存储的UTXO池：随机生成的区块逐个增量更新后的结果，
+ * 与从创世区块重建（reIndex）的结果以及内存中的模型一致
+ * <p>
+ * UTXO缓存的内存预算设置得很小，增量更新期间会多次写入DB并淘汰缓存
+ */
+public class UTXOSetTest {
+    private static final String GENESIS_ADDRESS = "1K1ZFF2J4om2NPf7x5QaXhUDs5sGPxYjaP";
+    private static final String DB_FILE = "blockchain_harmony.db";
+    private static final int ADDRESSES = 8;
+    private static final int BLOCKS = 150;
+    private static final int MAX_TXS_PER_BLOCK = 6;
+
+    private final Random random = new Random(20181017L);
+    private final List<byte[]> pubKeyHashes = Lists.newArrayList();
+    /**
+     * 期望的UTXO集合
+     */
+    private final Map<TXOutpoint, TXOutput> expected = Maps.newLinkedHashMap();
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        deleteDB();
+        // 每条记录估算 320 字节，约 60 条记录就会写入DB并淘汰
+        System.setProperty("harmony.utxo.cache.bytes", String.valueOf(320 * 60));
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException {
+        RocksDBUtil.getInstance().closeDB();
+        deleteDB();
+    }
+
+    private static void deleteDB() throws IOException {
+        Path path = Paths.get(DB_FILE);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void incrementalUpdatesMatchReIndex() throws Exception {
+        for (int i = 0; i < ADDRESSES; i++) {
+            byte[] pubKeyHash = new byte[20];
+            random.nextBytes(pubKeyHash);
+            pubKeyHashes.add(pubKeyHash);
+        }
+        BlockChain blockchain = BlockChain.newBlockchain(GENESIS_ADDRESS);
+        Block genesis = blockchain.getBlockByHeight(0);
+        this.apply(genesis.getTransactions()[0]);
+
+        for (int height = 1; height <= BLOCKS; height++) {
+            blockchain.connectBlock(this.newBlock(blockchain, height));
+            if (height % 10 == 0) {
+                // 按地址查询叠加了缓存中未写入DB的变化
+                this.assertBalances(blockchain);
+            }
+        }
+        UTXOSet utxoSet = new UTXOSet(blockchain);
+        this.assertBalances(blockchain);
+        UTXOCache.getInstance().flush();
+        Map<TXOutpoint, TXOutput> incremental = chainState();
+        assertEquals(expected, incremental);
+
+        utxoSet.reIndex();
+        assertEquals(incremental, chainState());
+        this.assertBalances(blockchain);
+        for (byte[] pubKeyHash : pubKeyHashes) {
+            assertEquals(this.expectedOutputs(pubKeyHash), utxoSet.findUnspentOutputs(pubKeyHash));
+        }
+    }
+
+    /**
+     * 随机生成区块：一笔 coinbase 交易以及若干笔花费随机UTXO的交易，
+     * 后面的交易可以花费同一区块中前面交易的输出
+     *
+     * @param blockchain
+     * @param height
+     * @return
+     */
+    private Block newBlock(BlockChain blockchain, int height) {
+        List<Transaction> transactions = Lists.newArrayList();
+        Transaction coinbase = new Transaction(null,
+                new TXInput[]{new TXInput(new byte[]{}, -1, null, ("coinbase " + height).getBytes())},
+                new TXOutput[]{new TXOutput(10, this.randomPubKeyHash())});
+        coinbase.setTxId(coinbase.hash());
+        transactions.add(coinbase);
+        this.apply(coinbase);
+
+        int txCount = random.nextInt(MAX_TXS_PER_BLOCK + 1);
+        for (int i = 0; i < txCount && !expected.isEmpty(); i++) {
+            List<TXOutpoint> candidates = Lists.newArrayList(expected.keySet());
+            int inputCount = 1 + random.nextInt(Math.min(3, candidates.size()));
+            List<TXInput> inputs = Lists.newArrayList();
+            int total = 0;
+            for (int j = 0; j < inputCount; j++) {
+                TXOutpoint outpoint = candidates.remove(random.nextInt(candidates.size()));
+                inputs.add(new TXInput(decodeHex(outpoint.getTxId()), outpoint.getIndex(), null, null));
+                total += expected.get(outpoint).getValue();
+            }
+            int outputCount = 1 + random.nextInt(3);
+            TXOutput[] outputs = new TXOutput[outputCount];
+            for (int j = 0; j < outputCount; j++) {
+                int value = j == outputCount - 1 ? total : random.nextInt(total + 1);
+                total -= value;
+                outputs[j] = new TXOutput(value, this.randomPubKeyHash());
+            }
+            Transaction tx = new Transaction(null, inputs.toArray(new TXInput[0]), outputs);
+            tx.setTxId(tx.hash());
+            transactions.add(tx);
+            this.apply(tx);
+        }
+
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        Block block = new Block(System.currentTimeMillis(), transactions.toArray(new Transaction[0]),
+                blockchain.getLastBlockHash(), Hex.encodeHexString(hash));
+        block.setHeight(height);
+        return block;
+    }
+
+    private void apply(Transaction tx) {
+        if (!tx.isCoinbase()) {
+            for (TXInput txInput : tx.getInputs()) {
+                expected.remove(new TXOutpoint(Hex.encodeHexString(txInput.getTxId()), txInput.getTxOutputIndex()));
+            }
+        }
+        String txId = Hex.encodeHexString(tx.getTxId());
+        for (int i = 0; i < tx.getOutputs().length; i++) {
+            expected.put(new TXOutpoint(txId, i), tx.getOutputs()[i]);
+        }
+    }
+
+    private void assertBalances(BlockChain blockchain) {
+        UTXOSet utxoSet = new UTXOSet(blockchain);
+        for (byte[] pubKeyHash : pubKeyHashes) {
+            int balance = 0;
+            for (TXOutput txOutput : this.expectedOutputs(pubKeyHash).values()) {
+                balance += txOutput.getValue();
+            }
+            assertEquals(balance, utxoSet.getBalance(pubKeyHash));
+            assertEquals(this.expectedOutputs(pubKeyHash).size(), utxoSet.findUTXOs(pubKeyHash).length);
+        }
+    }
+
+    private Map<TXOutpoint, TXOutput> expectedOutputs(byte[] pubKeyHash) {
+        Map<TXOutpoint, TXOutput> outputs = Maps.newHashMap();
+        for (Map.Entry<TXOutpoint, TXOutput> entry : expected.entrySet()) {
+            if (entry.getValue().isLockedWithKey(pubKeyHash)) {
+                outputs.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return outputs;
+    }
+
+    private static Map<TXOutpoint, TXOutput> chainState() {
+        Map<TXOutpoint, TXOutput> utxos = Maps.newHashMap();
+        RocksDBUtil.getInstance().forEachUTXOs((txId, index, txOutput) -> {
+            utxos.put(new TXOutpoint(txId, index), txOutput);
+            return true;
+        });
+        return utxos;
+    }
+
+    private byte[] randomPubKeyHash() {
+        return pubKeyHashes.get(random.nextInt(pubKeyHashes.size()));
+    }
+
+    private static byte[] decodeHex(String hex) {
+        try {
+            return Hex.decodeHex(hex.toCharArray());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
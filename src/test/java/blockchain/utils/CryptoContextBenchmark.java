@@ -0,0 +1,94 @@
+package blockchain.utils;
+
+import blockchain.wallet.Wallet;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.jce.spec.ECParameterSpec;
+import org.bouncycastle.jce.spec.ECPublicKeySpec;
+import org.bouncycastle.math.ec.ECPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个签名与验证的耗时：线程内复用的加密上下文与旧实现对比
+ * <p>
+ * signLegacy / verifyLegacy 复现旧实现每次调用的开销：注册 BouncyCastle、解析 secp256k1 参数、
+ * 获取 KeyFactory 与 Signature，并由公钥字节重新构建公钥。verify 的公钥在稳定状态下命中公钥缓存
+ * <p>
+ * 运行：mvn -P bench test-compile exec:exec -Djmh.args="CryptoContextBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoContextBenchmark {
+    private Wallet wallet;
+    private final byte[] data = new byte[32];
+    private byte[] signature;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        wallet = new Wallet();
+        new Random(20181017L).nextBytes(data);
+        signature = CryptoContext.get().sign(wallet.getPrivateKey(), data);
+        if (!this.verify() || !this.verifyLegacy()) {
+            throw new IllegalStateException("signature does not verify");
+        }
+    }
+
+    @Benchmark
+    public byte[] sign() throws GeneralSecurityException {
+        return CryptoContext.get().sign(wallet.getPrivateKey(), data);
+    }
+
+    @Benchmark
+    public byte[] signLegacy() throws GeneralSecurityException {
+        Security.addProvider(new BouncyCastleProvider());
+        Signature ecdsaSign = Signature.getInstance("SHA256withECDSA", BouncyCastleProvider.PROVIDER_NAME);
+        ecdsaSign.initSign(wallet.getPrivateKey());
+        ecdsaSign.update(data);
+        return ecdsaSign.sign();
+    }
+
+    @Benchmark
+    public boolean verify() throws GeneralSecurityException {
+        return CryptoContext.get().verify(wallet.getPublicKey(), data, signature);
+    }
+
+    @Benchmark
+    public boolean verifyLegacy() throws GeneralSecurityException {
+        Security.addProvider(new BouncyCastleProvider());
+        ECParameterSpec ecParameters = ECNamedCurveTable.getParameterSpec("secp256k1");
+        KeyFactory keyFactory = KeyFactory.getInstance("ECDSA", BouncyCastleProvider.PROVIDER_NAME);
+        Signature ecdsaVerify = Signature.getInstance("SHA256withECDSA", BouncyCastleProvider.PROVIDER_NAME);
+
+        byte[] pubKey = wallet.getPublicKey();
+        BigInteger x = new BigInteger(1, Arrays.copyOfRange(pubKey, 1, 33));
+        BigInteger y = new BigInteger(1, Arrays.copyOfRange(pubKey, 33, 65));
+        ECPoint ecPoint = ecParameters.getCurve().createPoint(x, y);
+        PublicKey publicKey = keyFactory.generatePublic(new ECPublicKeySpec(ecPoint, ecParameters));
+        ecdsaVerify.initVerify(publicKey);
+        ecdsaVerify.update(data);
+        return ecdsaVerify.verify(signature);
+    }
+}
@@ -0,0 +1,130 @@
+package blockchain.utils;
+
+import blockchain.block.Block;
+import blockchain.transaction.TXInput;
+import blockchain.transaction.TXOutput;
+import blockchain.transaction.Transaction;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 序列化与反序列化的吞吐量：对象池中预先注册类的 Kryo 与每次调用新建 Kryo（旧实现）对比
+ * <p>
+ * 对象为包含 100 笔交易的区块、单笔交易以及交易输出数组。分配量使用 JMH 的 gc 分析器查看：
+ * mvn -P bench test-compile exec:exec -Djmh.args="SerializeUtilBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializeUtilBenchmark {
+    private static final int BLOCK_TXS = 100;
+
+    @Param({"Block", "Transaction", "TXOutput[]"})
+    public String type;
+
+    private final Random random = new Random(20181017L);
+    private Object object;
+    private byte[] bytes;
+    private byte[] legacyBytes;
+
+    @Setup
+    public void setUp() {
+        switch (type) {
+            case "Block":
+                Transaction[] transactions = new Transaction[BLOCK_TXS];
+                for (int i = 0; i < BLOCK_TXS; i++) {
+                    transactions[i] = this.newTransaction();
+                }
+                object = new Block(System.currentTimeMillis(), transactions, Hex.encodeHexString(this.randomBytes(32)),
+                        Hex.encodeHexString(this.randomBytes(32)));
+                break;
+            case "Transaction":
+                object = this.newTransaction();
+                break;
+            default:
+                object = this.newTransaction().getOutputs();
+                break;
+        }
+        bytes = SerializeUtil.serialize(object);
+        legacyBytes = legacySerialize(object);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return SerializeUtil.serialize(object);
+    }
+
+    @Benchmark
+    public byte[] serializeLegacy() {
+        return legacySerialize(object);
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return SerializeUtil.deserialize(bytes);
+    }
+
+    @Benchmark
+    public Object deserializeLegacy() {
+        return legacyDeserialize(legacyBytes);
+    }
+
+    /**
+     * 旧实现：每次新建 Kryo 与 4KB 的输出缓冲区，写入完整类名
+     */
+    private static byte[] legacySerialize(Object object) {
+        Output output = new Output(4096, -1);
+        new Kryo().writeClassAndObject(output, object);
+        byte[] bytes = output.toBytes();
+        output.close();
+        return bytes;
+    }
+
+    private static Object legacyDeserialize(byte[] bytes) {
+        Input input = new Input(bytes);
+        Object obj = new Kryo().readClassAndObject(input);
+        input.close();
+        return obj;
+    }
+
+    /**
+     * 两个交易输入、两个交易输出的已签名交易（签名与公钥为随机数据）
+     *
+     * @return
+     */
+    private Transaction newTransaction() {
+        TXInput[] inputs = new TXInput[2];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = new TXInput(this.randomBytes(32), i, this.randomBytes(71), this.randomBytes(65));
+        }
+        TXOutput[] outputs = new TXOutput[]{new TXOutput(10, this.randomBytes(20)), new TXOutput(5, this.randomBytes(20))};
+        Transaction tx = new Transaction(null, inputs, outputs);
+        tx.setTxId(tx.hash());
+        return tx;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}